@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2010 by Mathias Menninghaus (mmenning (at) uos (dot) de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package mmenning.mobilegis.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Stores the raw data of downloaded map parts on SDCard in the folder
+ * 'application-packagename'/tiles. Every part is identified by the URL it was
+ * loaded from and stored in a file named by the SHA-1 hash of this URL.
+ *
+ * An index file holds the size of every stored part in the order of their last
+ * access. If the total size exceeds the limit, the least recently used parts
+ * will be deleted. The index is written after a number of changes and on
+ * flush(). If it is missing or corrupt it will be rebuilt from the folder.
+ */
+public class DiskTileCache {
+
+	private static final String DT = "DiskTileCache";
+
+	private static final String SDCARD = Environment
+			.getExternalStorageDirectory().getAbsolutePath();
+	private static final String TILES = File.separator + "tiles";
+	private static final String INDEX = "index";
+	private static final String TEMP = ".tmp";
+
+	private static final int INDEX_VERSION = 1;
+
+	private static final int IO_BUFFER_SIZE = 8192;
+
+	/**
+	 * the index will be written after this count of changes
+	 */
+	private static final int CHANGES_PER_INDEX_WRITE = 32;
+
+	/**
+	 * Default limit for the total size of all stored parts in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+	private static DiskTileCache sharedCache;
+
+	/**
+	 * Get the DiskTileCache shared by the whole application, limited to
+	 * DEFAULT_MAX_SIZE.
+	 *
+	 * @param context
+	 *            Context in which the DiskTileCache will work.
+	 * @return the shared DiskTileCache
+	 */
+	public static synchronized DiskTileCache getShared(Context context) {
+		if (sharedCache == null) {
+			sharedCache = new DiskTileCache(context, DEFAULT_MAX_SIZE);
+		}
+		return sharedCache;
+	}
+
+	private String path;
+
+	/**
+	 * file name -> size, in access order
+	 */
+	private LinkedHashMap<String, Long> index;
+
+	private long size;
+
+	private long maxSize;
+
+	private int changes;
+
+	/**
+	 * Instantiate new DiskTileCache. If not done yet, it will create a new
+	 * folder named by the application package name referring to the given
+	 * Context and '/tiles'.
+	 *
+	 * @param context
+	 *            Context in which the DiskTileCache will work.
+	 * @param maxSize
+	 *            limit for the total size of all stored parts in bytes
+	 */
+	public DiskTileCache(Context context, long maxSize) {
+		path = SDCARD + File.separator + context.getPackageName() + TILES;
+		File dir = new File(path);
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		path += File.separator;
+		this.maxSize = maxSize;
+		this.index = new LinkedHashMap<String, Long>(64, 0.75f, true);
+		if (!readIndex()) {
+			rebuildIndex();
+		}
+	}
+
+	/**
+	 * Estimate whether a part is stored.
+	 *
+	 * @param url
+	 *            Identifier of the part
+	 * @return true if it is stored
+	 */
+	public synchronized boolean contains(String url) {
+		return index.containsKey(fileName(url));
+	}
+
+	/**
+	 * Get the stored data of a part and mark it as recently used.
+	 *
+	 * @param url
+	 *            Identifier of the part
+	 * @return the stored data or null if there is no such part
+	 */
+	public byte[] get(String url) {
+		if (url == null) {
+			return null;
+		}
+		String name = fileName(url);
+		synchronized (this) {
+			if (index.get(name) == null) {
+				return null;
+			}
+			changes++;
+		}
+		File file = new File(path + name);
+		try {
+			return readFile(file);
+		} catch (IOException e) {
+			Log.w(DT, e);
+			synchronized (this) {
+				remove(name);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Store the data of a part. Any stored data for this url will be
+	 * overridden. May delete the least recently used parts to stay in the size
+	 * limit.
+	 *
+	 * @param url
+	 *            Identifier of the part
+	 * @param data
+	 *            data to be stored
+	 */
+	public void put(String url, byte[] data) {
+		if (url == null || data == null) {
+			return;
+		}
+		String name = fileName(url);
+		File temp = new File(path + name + TEMP + Thread.currentThread().getId());
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					temp), IO_BUFFER_SIZE);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			temp.delete();
+			return;
+		}
+		synchronized (this) {
+			remove(name);
+			if (!temp.renameTo(new File(path + name))) {
+				temp.delete();
+				return;
+			}
+			index.put(name, Long.valueOf(data.length));
+			size += data.length;
+			trimToSize();
+			if (++changes >= CHANGES_PER_INDEX_WRITE) {
+				writeIndex();
+			}
+		}
+	}
+
+	/**
+	 * Delete all stored parts.
+	 */
+	public synchronized void clear() {
+		Iterator<String> names = index.keySet().iterator();
+		while (names.hasNext()) {
+			new File(path + names.next()).delete();
+			names.remove();
+		}
+		size = 0;
+		writeIndex();
+	}
+
+	/**
+	 * Write the index if it changed since it was written the last time.
+	 * Should be called if the application will be paused.
+	 */
+	public synchronized void flush() {
+		if (changes > 0) {
+			writeIndex();
+		}
+	}
+
+	/**
+	 * @return total size of all stored parts in bytes
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Delete the least recently used parts until the total size fits into the
+	 * limit.
+	 */
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+		while (size > maxSize && eldest.hasNext()) {
+			Map.Entry<String, Long> e = eldest.next();
+			new File(path + e.getKey()).delete();
+			size -= e.getValue().longValue();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Remove a part from the index and delete its file.
+	 */
+	private void remove(String name) {
+		Long removed = index.remove(name);
+		if (removed != null) {
+			size -= removed.longValue();
+			new File(path + name).delete();
+		}
+	}
+
+	/**
+	 * Read the index file.
+	 *
+	 * @return false if there is no valid index file
+	 */
+	private boolean readIndex() {
+		File file = new File(path + INDEX);
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), IO_BUFFER_SIZE));
+			try {
+				if (in.readInt() != INDEX_VERSION) {
+					return false;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					long length = in.readLong();
+					index.put(name, Long.valueOf(length));
+					size += length;
+				}
+			} finally {
+				in.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(DT, e);
+			index.clear();
+			size = 0;
+			return false;
+		}
+	}
+
+	/**
+	 * Build the index from the files in the folder, ordered by their last
+	 * modification.
+	 */
+	private void rebuildIndex() {
+		index.clear();
+		size = 0;
+		File[] files = new File(path).listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (File f : files) {
+			String name = f.getName();
+			if (name.equals(INDEX)) {
+				continue;
+			}
+			if (name.indexOf(TEMP) >= 0) {
+				f.delete();
+				continue;
+			}
+			index.put(name, Long.valueOf(f.length()));
+			size += f.length();
+		}
+		trimToSize();
+		writeIndex();
+	}
+
+	/**
+	 * Write the index file, eldest part first.
+	 */
+	private void writeIndex() {
+		File temp = new File(path + INDEX + TEMP);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp),
+							IO_BUFFER_SIZE));
+			try {
+				out.writeInt(INDEX_VERSION);
+				out.writeInt(index.size());
+				for (Map.Entry<String, Long> e : index.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeLong(e.getValue().longValue());
+				}
+			} finally {
+				out.close();
+			}
+			File file = new File(path + INDEX);
+			file.delete();
+			if (temp.renameTo(file)) {
+				changes = 0;
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Read a whole file.
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				int r = in.read(data, read, data.length - read);
+				if (r == -1) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				read += r;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Hex encoded SHA-1 hash of the url.
+	 */
+	private static String fileName(String url) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest(url.getBytes("UTF-8"));
+			StringBuffer buf = new StringBuffer(digest.length * 2);
+			for (byte b : digest) {
+				buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+				buf.append(Character.forDigit(b & 0xF, 16));
+			}
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.toString());
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+}
@@ -22,7 +22,10 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+
+import mmenning.mobilegis.util.HttpConnector;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -34,6 +37,10 @@ import android.util.Log;
  * Manages the download and Storage of images from the internet on SDCard in the
  * folder 'application-packagename'/img.
  * 
+ * Images may be stored in the background by one Thread shared by all
+ * NetImageStorages. An image is written to a temporary file first, so it is
+ * never read before it is complete.
+ * 
  * @author Mathias Menninghaus
  * @version 23.10.2009
  */
@@ -45,10 +52,22 @@ public class NetImageStorage {
 			.getExternalStorageDirectory().getAbsolutePath();
 	private static final String IMG = File.separator+"img";
 
+	private static final String TEMP = ".tmp";
+
 	private static final int IO_BUFFER_SIZE = 1024;
 
+	/**
+	 * images to be stored in the background
+	 */
+	private static final LinkedList<PendingImage> pending =
+			new LinkedList<PendingImage>();
+
+	private static Thread backgroundStorer;
+
 	private String path;
 
+	private HttpConnector http;
+
 	/**
 	 * Instantiate new NetImageStorage. If not done yet, it will create a new
 	 * folder named by the application package name referring to the given
@@ -58,6 +77,7 @@ public class NetImageStorage {
 	 *            Context in which the NetImageStorage will work.
 	 */
 	public NetImageStorage(Context context) {
+		http = HttpConnector.getShared(context);
 		path = SDCARD + File.separator + context.getPackageName() + IMG;
 		File dir = new File(path);
 		if (!dir.exists()) {
@@ -112,6 +132,26 @@ public class NetImageStorage {
 		return bmp;
 	}
 
+	/**
+	 * Store images in the background. They will be stored one after another
+	 * by a single Thread.
+	 * 
+	 * @param urls
+	 *            URLs to load the images from, see {@link #store(String)}
+	 */
+	public void storeInBackground(List<String> urls) {
+		synchronized (pending) {
+			for (String url : urls) {
+				pending.add(new PendingImage(this, url));
+			}
+			if (backgroundStorer == null && !pending.isEmpty()) {
+				backgroundStorer = new Thread(new BackgroundStorer(), DT);
+				backgroundStorer.setDaemon(true);
+				backgroundStorer.start();
+			}
+		}
+	}
+
 	/**
 	 * Store an image to the filesystem.
 	 * 
@@ -126,12 +166,12 @@ public class NetImageStorage {
 		int img = url.hashCode();
 		File file = null;
 		try {
-			file = new File(path + img);
-			if (!file.exists()) {
-				file.createNewFile();
-				URL u = new URL(url);
-				InputStream input = null;
-				input = u.openStream();
+			File target = new File(path + img);
+			if (!target.exists()) {
+				file = new File(path + img + TEMP
+						+ Thread.currentThread().getId());
+				HttpConnector.Response response = http.get(url, false);
+				InputStream input = response.getInputStream();
 				BufferedOutputStream out = new BufferedOutputStream(
 						new FileOutputStream(file), IO_BUFFER_SIZE);
 				byte[] b = new byte[IO_BUFFER_SIZE];
@@ -141,7 +181,10 @@ public class NetImageStorage {
 				}
 				out.flush();
 				out.close();
-				input.close();
+				response.close();
+				if (!file.renameTo(target)) {
+					file.delete();
+				}
 			}
 		} catch (FileNotFoundException e) {
 			if (file != null) {
@@ -157,4 +200,38 @@ public class NetImageStorage {
 
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * An image to be stored in the background.
+	 */
+	private static class PendingImage {
+
+		private NetImageStorage storage;
+		private String url;
+
+		private PendingImage(NetImageStorage storage, String url) {
+			this.storage = storage;
+			this.url = url;
+		}
+	}
+
+	/**
+	 * Stores the pending images until there are no more.
+	 */
+	private static class BackgroundStorer implements Runnable {
+
+		public void run() {
+			while (true) {
+				PendingImage next;
+				synchronized (pending) {
+					if (pending.isEmpty()) {
+						backgroundStorer = null;
+						return;
+					}
+					next = pending.removeFirst();
+				}
+				next.storage.store(next.url);
+			}
+		}
+	}
+}
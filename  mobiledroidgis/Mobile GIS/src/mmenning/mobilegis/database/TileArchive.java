@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2010 by Mathias Menninghaus (mmenning (at) uos (dot) de)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package mmenning.mobilegis.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Stores the raw data of map parts in a single SQLite database on SDCard in
+ * the folder 'application-packagename', so the archive can be copied to
+ * another device as one file. Every part is identified by its layer (usually
+ * the GetMap base URL) and its zoom level, column and row in the z/x/y tile
+ * matrix of the {@link mmenning.mobilegis.map.wms.TileGrid}, row 0 being the
+ * northmost one.
+ *
+ * Parts are written in batches of BATCH_SIZE parts, each batch in one
+ * transaction with one compiled statement. Parts not written yet are found by
+ * all methods anyway. If a batch can not be written, its parts are kept and
+ * written with the next one, but not more than MAX_PENDING parts are kept.
+ * flush() writes the current batch and should be called if the application
+ * will be paused.
+ *
+ * The count and the size of the stored parts are counted once in background
+ * by the shared TileArchive and kept up to date with every batch, so
+ * getCount() and getSize() neither scan the archive nor wait for it.
+ */
+public class TileArchive extends SQLiteOnSDCard {
+
+	private static final String DT = "TileArchive";
+
+	private static final String DATABASE_NAME = "tiles.db";
+	private static final int DATABASE_VERSION = 1;
+
+	/**
+	 * count of parts written in one transaction
+	 */
+	private static final int BATCH_SIZE = 32;
+
+	/**
+	 * count of parts kept while the batches can not be written
+	 */
+	private static final int MAX_PENDING = 4 * BATCH_SIZE;
+
+	/*
+	 * Tables
+	 */
+	private static final String LAYERS_TABLE = "layers";
+	private static final String TILES_TABLE = "tiles";
+
+	/*
+	 * Columns
+	 */
+	private static final String ID = "_id";
+	private static final String LAYERS_url = "url";
+	private static final String TILES_layer = "layer";
+	private static final String TILES_zoom = "zoom";
+	private static final String TILES_column = "tile_column";
+	private static final String TILES_row = "tile_row";
+	private static final String TILES_data = "tile_data";
+
+	private static final String CREATE_LAYERS = "CREATE TABLE "
+			+ LAYERS_TABLE + " (" + ID + " INTEGER PRIMARY KEY, " + LAYERS_url
+			+ " TEXT UNIQUE NOT NULL)";
+
+	private static final String CREATE_TILES = "CREATE TABLE " + TILES_TABLE
+			+ " (" + TILES_layer + " INTEGER NOT NULL, " + TILES_zoom
+			+ " INTEGER NOT NULL, " + TILES_column + " INTEGER NOT NULL, "
+			+ TILES_row + " INTEGER NOT NULL, " + TILES_data
+			+ " BLOB NOT NULL, PRIMARY KEY (" + TILES_layer + ", "
+			+ TILES_zoom + ", " + TILES_column + ", " + TILES_row + "))";
+
+	private static final String TILE_WHERE = TILES_layer + "=? AND "
+			+ TILES_zoom + "=? AND " + TILES_column + "=? AND " + TILES_row
+			+ "=?";
+
+	private static final String insertTile = "INSERT OR REPLACE INTO "
+			+ TILES_TABLE + " (" + TILES_layer + ", " + TILES_zoom + ", "
+			+ TILES_column + ", " + TILES_row + ", " + TILES_data
+			+ ") VALUES (?, ?, ?, ?, ?)";
+
+	private static final String countTile = "SELECT count(*) FROM "
+			+ TILES_TABLE + " WHERE " + TILE_WHERE;
+
+	private static final String sizeOfTile = "SELECT coalesce((SELECT length("
+			+ TILES_data + ") FROM " + TILES_TABLE + " WHERE " + TILE_WHERE
+			+ "), -1)";
+
+	private static final String countTiles = "SELECT count(*) FROM "
+			+ TILES_TABLE;
+
+	private static final String sizeOfTiles = "SELECT total(length("
+			+ TILES_data + ")) FROM " + TILES_TABLE;
+
+	private static final String LAYER_WHERE = " WHERE " + TILES_layer + "=";
+
+	private static TileArchive sharedArchive;
+
+	/**
+	 * Get the TileArchive shared by the whole application.
+	 *
+	 * @param context
+	 *            Context in which the TileArchive will work.
+	 * @return the shared TileArchive
+	 */
+	public static synchronized TileArchive getShared(Context context) {
+		if (sharedArchive == null) {
+			sharedArchive = new TileArchive(context);
+			Thread counter = new Thread(new Runnable() {
+				public void run() {
+					sharedArchive.countParts();
+				}
+			}, DT);
+			counter.setDaemon(true);
+			counter.start();
+		}
+		return sharedArchive;
+	}
+
+	/**
+	 * layer url -> database id
+	 */
+	private HashMap<String, Long> layerIDs;
+
+	/**
+	 * parts not written yet
+	 */
+	private ArrayList<Tile> batch;
+
+	/**
+	 * compiled statement of contains(), bound to statementDB
+	 */
+	private SQLiteStatement countStatement;
+
+	private SQLiteDatabase statementDB;
+
+	/**
+	 * count and total size of the written parts, -1 if not counted yet. Only
+	 * changed while the TileArchive is locked, but read without the lock.
+	 */
+	private volatile int count = -1;
+
+	private volatile long size = -1;
+
+	/**
+	 * count and total size of the parts in the batch
+	 */
+	private volatile int pendingCount;
+
+	private volatile long pendingSize;
+
+	/**
+	 * Instantiate a new TileArchive. If not done yet, the database will be
+	 * created.
+	 *
+	 * @param context
+	 *            Context in which the TileArchive will work.
+	 */
+	public TileArchive(Context context) {
+		super(context, DATABASE_NAME, DATABASE_VERSION);
+		this.layerIDs = new HashMap<String, Long>();
+		this.batch = new ArrayList<Tile>(BATCH_SIZE);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL(CREATE_LAYERS);
+		db.execSQL(CREATE_TILES);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		Log.w(DT, "Upgrading database from version " + oldVersion + " to "
+				+ newVersion + ", which will destroy all old data");
+		db.execSQL("DROP TABLE IF EXISTS " + TILES_TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + LAYERS_TABLE);
+		onCreate(db);
+	}
+
+	/**
+	 * Estimate whether a part is stored.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param zoom
+	 *            zoom level of the tile matrix
+	 * @param column
+	 *            column in the tile matrix
+	 * @param row
+	 *            row in the tile matrix
+	 * @return true if it is stored
+	 */
+	public synchronized boolean contains(String layer, int zoom, int column,
+			int row) {
+		if (pending(layer, zoom, column, row) != null) {
+			return true;
+		}
+		long layerID = layerID(layer, false);
+		if (layerID == -1) {
+			return false;
+		}
+		try {
+			SQLiteStatement count = countStatement();
+			count.bindLong(1, layerID);
+			count.bindLong(2, zoom);
+			count.bindLong(3, column);
+			count.bindLong(4, row);
+			return count.simpleQueryForLong() > 0;
+		} catch (SQLException e) {
+			Log.w(DT, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Get the stored data of a part.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param zoom
+	 *            zoom level of the tile matrix
+	 * @param column
+	 *            column in the tile matrix
+	 * @param row
+	 *            row in the tile matrix
+	 * @return the stored data or null if there is no such part
+	 */
+	public synchronized byte[] get(String layer, int zoom, int column, int row) {
+		Tile pending = pending(layer, zoom, column, row);
+		if (pending != null) {
+			return pending.data;
+		}
+		long layerID = layerID(layer, false);
+		if (layerID == -1) {
+			return null;
+		}
+		Cursor c = getWritableDatabase().query(
+				TILES_TABLE,
+				new String[] { TILES_data },
+				TILE_WHERE,
+				new String[] { String.valueOf(layerID), String.valueOf(zoom),
+						String.valueOf(column), String.valueOf(row) }, null,
+				null, null);
+		try {
+			return c.moveToFirst() ? c.getBlob(0) : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Store the data of a part. Any stored data for this part will be
+	 * overridden. It is written with the next batch.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param zoom
+	 *            zoom level of the tile matrix
+	 * @param column
+	 *            column in the tile matrix
+	 * @param row
+	 *            row in the tile matrix
+	 * @param data
+	 *            data to be stored
+	 * @return false if the part was not accepted, because the batches can not
+	 *         be written
+	 */
+	public synchronized boolean put(String layer, int zoom, int column,
+			int row, byte[] data) {
+		if (layer == null || data == null) {
+			return false;
+		}
+		Tile pending = pending(layer, zoom, column, row);
+		if (pending != null) {
+			pending.data = data;
+			batchChanged();
+			return true;
+		}
+		if (batch.size() >= MAX_PENDING && !writeBatch()) {
+			return false;
+		}
+		batch.add(new Tile(layer, zoom, column, row, data));
+		batchChanged();
+		if (batch.size() >= BATCH_SIZE) {
+			writeBatch();
+		}
+		return true;
+	}
+
+	/**
+	 * Write all parts not written yet.
+	 *
+	 * @return false if they could not be written, they are kept then
+	 */
+	public synchronized boolean flush() {
+		return batch.isEmpty() || writeBatch();
+	}
+
+	/**
+	 * Delete all stored parts of a layer and compact the database.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 */
+	public synchronized void delete(String layer) {
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			if (batch.get(i).layer.equals(layer)) {
+				batch.remove(i);
+			}
+		}
+		batchChanged();
+		long layerID = layerID(layer, false);
+		if (layerID == -1) {
+			return;
+		}
+		if (count != -1) {
+			count -= (int) queryForLong(countTiles + LAYER_WHERE + layerID);
+			size -= queryForLong(sizeOfTiles + LAYER_WHERE + layerID);
+		}
+		SQLiteDatabase db = getWritableDatabase();
+		db.delete(TILES_TABLE, TILES_layer + "=" + layerID, null);
+		db.delete(LAYERS_TABLE, ID + "=" + layerID, null);
+		layerIDs.remove(layer);
+		vacuum();
+	}
+
+	/**
+	 * Delete all stored parts and compact the database.
+	 */
+	public synchronized void clear() {
+		batch.clear();
+		batchChanged();
+		SQLiteDatabase db = getWritableDatabase();
+		db.delete(TILES_TABLE, null, null);
+		db.delete(LAYERS_TABLE, null, null);
+		layerIDs.clear();
+		count = 0;
+		size = 0;
+		vacuum();
+	}
+
+	/**
+	 * Rebuild the database file, so the space of deleted parts is given
+	 * back.
+	 */
+	public synchronized void vacuum() {
+		flush();
+		try {
+			getWritableDatabase().execSQL("VACUUM");
+		} catch (SQLException e) {
+			Log.w(DT, e);
+		}
+	}
+
+	/**
+	 * Does not wait for the TileArchive, so it may be called from the UI
+	 * Thread.
+	 *
+	 * @return count of stored parts or -1 if they are not counted yet
+	 */
+	public int getCount() {
+		int ret = count;
+		return ret == -1 ? -1 : ret + pendingCount;
+	}
+
+	/**
+	 * Does not wait for the TileArchive, so it may be called from the UI
+	 * Thread.
+	 *
+	 * @return total size of all stored parts in bytes or -1 if they are not
+	 *         counted yet
+	 */
+	public long getSize() {
+		long ret = size;
+		return ret == -1 ? -1 : ret + pendingSize;
+	}
+
+	/**
+	 * Write all parts not written yet and close the database connection.
+	 */
+	@Override
+	public synchronized void close() {
+		flush();
+		if (countStatement != null) {
+			countStatement.close();
+			countStatement = null;
+		}
+		super.close();
+	}
+
+	/**
+	 * Count the written parts and their size, if not done yet.
+	 */
+	private synchronized void countParts() {
+		if (count == -1) {
+			count = (int) queryForLong(countTiles);
+			size = queryForLong(sizeOfTiles);
+		}
+	}
+
+	/**
+	 * The compiled statement of contains(), compiled again if the database
+	 * was opened again.
+	 */
+	private SQLiteStatement countStatement() {
+		SQLiteDatabase db = getWritableDatabase();
+		if (countStatement == null || statementDB != db) {
+			if (countStatement != null) {
+				countStatement.close();
+			}
+			countStatement = db.compileStatement(countTile);
+			statementDB = db;
+		}
+		return countStatement;
+	}
+
+	private long queryForLong(String query) {
+		SQLiteStatement s = getWritableDatabase().compileStatement(query);
+		try {
+			return s.simpleQueryForLong();
+		} catch (SQLException e) {
+			Log.w(DT, e);
+			return 0;
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Write the batch in one transaction and update the count and size of
+	 * the written parts. The layers are inserted before the transaction, so
+	 * the cached layer ids stay valid if it is rolled back. If it fails the
+	 * batch is kept.
+	 *
+	 * @return true if the batch was written
+	 */
+	private boolean writeBatch() {
+		SQLiteDatabase db = getWritableDatabase();
+		long[] layers = new long[batch.size()];
+		try {
+			for (int i = 0; i < layers.length; i++) {
+				layers[i] = layerID(batch.get(i).layer, true);
+				if (layers[i] == -1) {
+					return false;
+				}
+			}
+		} catch (SQLException e) {
+			Log.w(DT, e);
+			return false;
+		}
+
+		int addedCount = 0;
+		long addedSize = 0;
+		boolean written = false;
+		db.beginTransaction();
+		try {
+			SQLiteStatement insert = db.compileStatement(insertTile);
+			SQLiteStatement length = db.compileStatement(sizeOfTile);
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					Tile t = batch.get(i);
+					long layerID = layers[i];
+					length.bindLong(1, layerID);
+					length.bindLong(2, t.zoom);
+					length.bindLong(3, t.column);
+					length.bindLong(4, t.row);
+					long replaced = length.simpleQueryForLong();
+					if (replaced == -1) {
+						addedCount++;
+					} else {
+						addedSize -= replaced;
+					}
+					addedSize += t.data.length;
+
+					insert.bindLong(1, layerID);
+					insert.bindLong(2, t.zoom);
+					insert.bindLong(3, t.column);
+					insert.bindLong(4, t.row);
+					insert.bindBlob(5, t.data);
+					insert.execute();
+				}
+			} finally {
+				length.close();
+				insert.close();
+			}
+			db.setTransactionSuccessful();
+			written = true;
+		} catch (SQLException e) {
+			Log.w(DT, e);
+		} finally {
+			db.endTransaction();
+		}
+		if (written) {
+			batch.clear();
+			batchChanged();
+			if (count != -1) {
+				count += addedCount;
+				size += addedSize;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Update the count and size of the parts in the batch.
+	 */
+	private void batchChanged() {
+		long bytes = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			bytes += batch.get(i).data.length;
+		}
+		pendingCount = batch.size();
+		pendingSize = bytes;
+	}
+
+	/**
+	 * Database id of a layer.
+	 *
+	 * @param create
+	 *            true to insert the layer if it is not stored yet
+	 * @return the id or -1 if the layer is not stored
+	 */
+	private long layerID(String layer, boolean create) {
+		Long id = layerIDs.get(layer);
+		if (id != null) {
+			return id.longValue();
+		}
+		SQLiteDatabase db = getWritableDatabase();
+		Cursor c = db.query(LAYERS_TABLE, new String[] { ID }, LAYERS_url
+				+ "=?", new String[] { layer }, null, null, null);
+		long ret = -1;
+		try {
+			if (c.moveToFirst()) {
+				ret = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		if (ret == -1 && create) {
+			ContentValues values = new ContentValues();
+			values.put(LAYERS_url, layer);
+			ret = db.insert(LAYERS_TABLE, null, values);
+		}
+		if (ret != -1) {
+			layerIDs.put(layer, Long.valueOf(ret));
+		}
+		return ret;
+	}
+
+	/**
+	 * The part in the batch, null if it is not there.
+	 */
+	private Tile pending(String layer, int zoom, int column, int row) {
+		for (int i = 0; i < batch.size(); i++) {
+			Tile t = batch.get(i);
+			if (t.zoom == zoom && t.column == column && t.row == row
+					&& t.layer.equals(layer)) {
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A part waiting to be written.
+	 */
+	private static class Tile {
+
+		private String layer;
+		private int zoom;
+		private int column;
+		private int row;
+		private byte[] data;
+
+		private Tile(String layer, int zoom, int column, int row, byte[] data) {
+			this.layer = layer;
+			this.zoom = zoom;
+			this.column = column;
+			this.row = row;
+			this.data = data;
+		}
+	}
+}
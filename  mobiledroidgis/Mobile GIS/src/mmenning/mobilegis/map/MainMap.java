@@ -15,7 +15,9 @@
  */
 package mmenning.mobilegis.map;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import mmenning.mobilegis.Preferences;
 import mmenning.mobilegis.R;
@@ -36,6 +38,7 @@ import mmenning.mobilegis.map.sos.SOSData;
 import mmenning.mobilegis.map.sos.SOSOverlay;
 import mmenning.mobilegis.map.sos.SOSUtils;
 import mmenning.mobilegis.map.sos.SOSOverlay.SOSOverlayListener;
+import mmenning.mobilegis.map.wms.AreaDownloader;
 import mmenning.mobilegis.map.wms.WMSActivity;
 import mmenning.mobilegis.map.wms.WMSDB;
 import mmenning.mobilegis.map.wms.WMSOverlay;
@@ -83,6 +86,7 @@ public class MainMap extends MapActivity {
 	 * Dialog constants
 	 */
 	private static final int LAYERMENU_DIALOG = 0;
+	private static final int OFFLINE_DIALOG = 1;
 
 	/*
 	 * constants to manage calling LayerMenus
@@ -103,6 +107,7 @@ public class MainMap extends MapActivity {
 	private static final int PREFERENCES = 1;
 	private static final int MYLOCATION = 2;
 	private static final int LAYERS = 3;
+	private static final int OFFLINE = 4;
 	/*
 	 * TODO only for testing
 	 */
@@ -142,6 +147,13 @@ public class MainMap extends MapActivity {
 
 	private boolean detailsActivated;
 
+	/*
+	 * getMapBaseURLs of the visible WMS and the WMSDB version they were read
+	 * at, kept across all rebuilds and instances of this Activity
+	 */
+	private static int wmsSnapshotVersion = -1;
+	private static List<String> wmsSnapshot;
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -234,7 +246,7 @@ public class MainMap extends MapActivity {
 					String time = null;
 					float value = 0;
 					if (d != null) {
-						time = SOSUtils.sosDisplayFormat.format(d);
+						time = SOSUtils.formatDisplayTime(d);
 						value = sosdb.getYoungestMeasurementValue(data.id);
 					}
 					sosdb.close();
@@ -275,6 +287,8 @@ public class MainMap extends MapActivity {
 		menu.add(0, PREFERENCES, 0, R.string.preferences).setIcon(
 				R.drawable.menu_preferences);
 		menu.add(0, LAYERS, 0, R.string.layers).setIcon(R.drawable.menu_layers);
+		menu.add(0, OFFLINE, 0, R.string.offline).setIcon(
+				R.drawable.menu_save);
 		/*
 		 * TODO just for testing
 		 */
@@ -318,6 +332,13 @@ public class MainMap extends MapActivity {
 		case LAYERS:
 			this.showDialog(LAYERMENU_DIALOG);
 			return true;
+		case OFFLINE:
+			/*
+			 * rebuild the dialog, the displayed area may have changed
+			 */
+			this.removeDialog(OFFLINE_DIALOG);
+			this.showDialog(OFFLINE_DIALOG);
+			return true;
 		case TEST:
 			/*
 			 * TODO just for testing
@@ -455,35 +476,134 @@ public class MainMap extends MapActivity {
 				}
 			});
 			return b.create();
+		case OFFLINE_DIALOG:
+			return createOfflineDialog();
 		}
 		return super.onCreateDialog(id);
 	}
 
+	/**
+	 * Dialog to download the displayed area of all WMS for offline use, from
+	 * the current zoom level up to WMSUtils.OFFLINEZoomLevels above. Shows an
+	 * estimate of the size before, and the progress while downloading.
+	 */
+	private Dialog createOfflineDialog() {
+		final AreaDownloader downloader = AreaDownloader.getShared(this);
+		AlertDialog.Builder b = new AlertDialog.Builder(this);
+		b.setTitle(R.string.offline);
+		b.setNegativeButton(R.string.cancel, null);
+
+		if (downloader.isActive()) {
+			b.setMessage(this.getString(R.string.offline_progress, downloader
+					.getProgress(), downloader.getTotal()));
+			b.setPositiveButton(R.string.stop,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							downloader.stop();
+							MainMap.this.setTitle(R.string.app_name);
+						}
+					});
+			return b.create();
+		}
+
+		GeoPoint center = map.getMapCenter();
+		final int minLat = center.getLatitudeE6() - map.getLatitudeSpan() / 2;
+		final int maxLat = minLat + map.getLatitudeSpan();
+		/*
+		 * the longitudes may cross the antimeridian, the AreaDownloader
+		 * normalises them
+		 */
+		final int lonSpan = Math.min(map.getLongitudeSpan(), 360000000);
+		final int minLon = center.getLongitudeE6() - lonSpan / 2;
+		final int maxLon = minLon + lonSpan;
+		final int minZoom = map.getZoomLevel();
+		final int maxZoom = Math.min(minZoom + WMSUtils.OFFLINEZoomLevels, map
+				.getMaxZoomLevel());
+		final List<String> baseURLs = wmsOverlay.getGetMapBaseURLs();
+		long parts = AreaDownloader.countParts(baseURLs, minLat, minLon,
+				maxLat, maxLon, minZoom, maxZoom);
+
+		StringBuffer message = new StringBuffer();
+		if (parts == 0) {
+			message.append(this.getString(R.string.offline_unsupported));
+		} else if (parts > WMSUtils.OFFLINEMaxParts) {
+			message.append(this.getString(R.string.offline_too_large));
+		} else {
+			message.append(this.getString(R.string.offline_estimate, parts,
+					minZoom, maxZoom, downloader.estimateBytes(parts)
+							/ (1024 * 1024)));
+			b.setPositiveButton(R.string.download,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							downloader.start(baseURLs, minLat, minLon, maxLat,
+									maxLon, minZoom, maxZoom);
+						}
+					});
+		}
+		if (downloader.isUnfinished()) {
+			message.append('\n');
+			message.append(this.getString(R.string.offline_unfinished,
+					downloader.getProgress(), downloader.getTotal()));
+			b.setNeutralButton(R.string.resume,
+					new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int which) {
+							downloader.resume();
+						}
+					});
+		}
+		b.setMessage(message);
+		return b.create();
+	}
+
+	/**
+	 * Set the visible WMS to the WMSOverlay. If the WMSDB did not change since
+	 * they were read the last time, the WMSOverlay keeps its loaders and the
+	 * database is not queried.
+	 */
 	private void rebuildWMS() {
+		List<String> snapshot = getWMSSnapshot();
+		if (snapshot != null) {
+			wmsOverlay.setLoaders(snapshot);
+			return;
+		}
+
 		wmsOverlay.makeSleeping();
 
 		new Thread() {
 			public void run() {
 				layerBuildingHandler.sendEmptyMessage(STARTANIM);
-				wmsOverlay.clear();
+				int version = WMSDB.getVersion();
 				wmsdb.openReadOnly();
 				int[] wms = wmsdb.getVisibleWMS();
 
+				List<String> baseURLs = new ArrayList<String>(wms.length);
 				for (int i = wms.length - 1; i >= 0; i--) {
 					String getMapBaseURL = WMSUtils.generateGetMapBaseURL(wmsdb
 							.getWMSData(wms[i], WMSDB.WMS_getMapURL), wmsdb
 							.getVisibleLayerNames(wms[i]), wmsdb
 							.getSRSforVisibleLayers(wms[i]));
 
-					wmsOverlay.addLoader(getMapBaseURL);
+					baseURLs.add(getMapBaseURL);
 				}
 				wmsdb.close();
+				setWMSSnapshot(version, baseURLs);
+				wmsOverlay.setLoaders(baseURLs);
 				wmsOverlay.makeAwake();
 				layerBuildingHandler.sendEmptyMessage(STOPANIM);
 			}
 		}.start();
 	}
 
+	private static synchronized List<String> getWMSSnapshot() {
+		return wmsSnapshotVersion == WMSDB.getVersion() ? wmsSnapshot : null;
+	}
+
+	private static synchronized void setWMSSnapshot(int version,
+			List<String> baseURLs) {
+		wmsSnapshotVersion = version;
+		wmsSnapshot = baseURLs;
+	}
+
 	private void rebuildSOS() {
 
 		sosOverlay.makeSleeping();
@@ -563,9 +683,35 @@ public class MainMap extends MapActivity {
 
 	};
 
+	/**
+	 * Displays the progress of the AreaDownloader in the title.
+	 */
+	final Handler offlineHandler = new Handler() {
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case AreaDownloader.PROGRESS:
+				setTitle(getString(R.string.offline_progress, msg.arg1,
+						msg.arg2));
+				break;
+			case AreaDownloader.FINISHED:
+				setTitle(R.string.app_name);
+				Toast.makeText(MainMap.this,
+						getString(R.string.offline_finished, msg.arg2),
+						Toast.LENGTH_LONG).show();
+				break;
+			}
+			super.handleMessage(msg);
+		}
+
+	};
+
 	@Override
 	protected void onPause() {
 
+		wmsOverlay.onPause();
+		AreaDownloader.getShared(this).setHandler(null);
 		if (myLocationUpdate) {
 			myLocation.disableMyLocation();
 		}
@@ -595,6 +741,16 @@ public class MainMap extends MapActivity {
 		} else {
 			wmsOverlay.setTransparency(0xFF);
 		}
+		wmsOverlay.setPrefetching(prefs.getBoolean(this
+				.getString(R.string.enableprefetch), false));
+		wmsOverlay.setOpaqueBaseLayer(prefs.getBoolean(this
+				.getString(R.string.opaquebaselayer), false));
+		wmsOverlay.setCompositing(prefs.getBoolean(this
+				.getString(R.string.enablecompositing), false));
+		wmsOverlay.setMetaTiling(prefs.getBoolean(this
+				.getString(R.string.enablemetatiling), false));
+
+		AreaDownloader.getShared(this).setHandler(offlineHandler);
 
 		if (myLocationUpdate) {
 			myLocation.enableMyLocation();
@@ -132,7 +132,7 @@ public class GeoRSSEntryActivity extends Activity {
 		description.setText(entry.description);
 		TextView time = (TextView) this
 				.findViewById(R.id.georssentryactivityview_time);
-		time.setText(GeoRSSUtils.displayTimeFormat.format(entry.time));
+		time.setText(GeoRSSUtils.formatDisplayTime(entry.time));
 		TextView location = (TextView) this
 				.findViewById(R.id.georssentryactivityview_location);
 		location.setText("" + (((float) entry.latE6) * 1.0f / 1E6) + " | "
@@ -75,7 +75,7 @@ public class GeoRSSEntryItemView extends LinearLayout {
 				.findViewById(R.id.georssentryitem_title);
 		title.setText(entry.title);
 		TextView time = (TextView) this.findViewById(R.id.georssentryitem_time);
-		time.setText(GeoRSSUtils.displayTimeFormat.format(entry.time));
+		time.setText(GeoRSSUtils.formatDisplayTime(entry.time));
 	}
 
 	/**
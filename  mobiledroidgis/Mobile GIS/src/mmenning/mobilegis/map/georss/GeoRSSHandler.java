@@ -15,9 +15,10 @@
  */
 package mmenning.mobilegis.map.georss;
 
-import java.text.ParseException;
+import java.util.Date;
 
 import mmenning.mobilegis.map.georss.ParsedGeoRSSFeed.ParsedGeoRSSEntry;
+import mmenning.mobilegis.util.TimeCodec;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -299,10 +300,11 @@ public class GeoRSSHandler extends DefaultHandler {
 				actEntry.link=charBuffer.toString();
 				in_link = false;
 			} else if (in_pubDate && localName.equals(pubDate)) {
-				try {
-					actEntry.pubDate=GeoRSSUtils.rssTimeFormat.parse(charBuffer.toString());
-				} catch (ParseException e) {
-					Log.w(DT, e);
+				long time = TimeCodec.parseRFC822(charBuffer.toString());
+				if (time != TimeCodec.INVALID) {
+					actEntry.pubDate = new Date(time);
+				} else {
+					Log.w(DT, "invalid pubDate " + charBuffer);
 				}
 				in_pubDate = false;
 			} else if (localName.equals(item)) {
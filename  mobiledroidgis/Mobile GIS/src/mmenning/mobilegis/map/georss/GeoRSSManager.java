@@ -16,7 +16,6 @@
 package mmenning.mobilegis.map.georss;
 
 import java.io.IOException;
-import java.net.URL;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -24,6 +23,7 @@ import javax.xml.parsers.SAXParserFactory;
 
 import mmenning.mobilegis.R;
 import mmenning.mobilegis.map.georss.ParsedGeoRSSFeed.ParsedGeoRSSEntry;
+import mmenning.mobilegis.util.HttpConnector;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -48,10 +48,12 @@ public class GeoRSSManager {
 
 	private Context context;
 	private GeoRSSDB db;
+	private HttpConnector http;
 
 	public GeoRSSManager(Context ctx) {
 		this.context = ctx;
 		this.db = new GeoRSSDB(this.context);
+		this.http = HttpConnector.getShared(ctx);
 	}
 
 	/**
@@ -69,7 +71,8 @@ public class GeoRSSManager {
 		try {
 			db.open();
 
-			syncWithSingle(url);
+			syncWithSingle(url, false);
+			http.flush();
 
 			SharedPreferences prefs = PreferenceManager
 					.getDefaultSharedPreferences(context);
@@ -93,7 +96,8 @@ public class GeoRSSManager {
 	/**
 	 * Synchronize all feeds stored in the database and write again to the
 	 * database. So while this works, nobody should use a GeoRSSDB. It assumes
-	 * that every feed in the GeoRSSDB is a valid source.
+	 * that every feed in the GeoRSSDB is a valid source. Feeds which did not
+	 * change since the last synchronization will not be loaded again.
 	 * 
 	 * @throws IOException
 	 * @throws ParserConfigurationException
@@ -106,8 +110,9 @@ public class GeoRSSManager {
 			db.open();
 			String[] urls = db.getAllGeoRSSurls();
 			for (String url : urls) {
-				syncWithSingle(url);
+				syncWithSingle(url, true);
 			}
+			http.flush();
 
 			SharedPreferences prefs = PreferenceManager
 					.getDefaultSharedPreferences(context);
@@ -129,10 +134,22 @@ public class GeoRSSManager {
 
 	}
 
-	private void syncWithSingle(String feedUrl) throws IOException,
-			ParserConfigurationException, SAXException {
+	/**
+	 * Load a feed and store it with its entries.
+	 * 
+	 * @param feedUrl
+	 * @param conditional
+	 *            true if the feed is already stored, it will not be parsed
+	 *            again if it did not change
+	 */
+	private void syncWithSingle(String feedUrl, boolean conditional)
+			throws IOException, ParserConfigurationException, SAXException {
 
-		URL url = new URL(feedUrl);
+		HttpConnector.Response response = http.get(feedUrl, conditional);
+		if (response.isNotModified()) {
+			response.close();
+			return;
+		}
 
 		/* Get a SAXParser from the SAXPArserFactory. */
 		SAXParserFactory spf = SAXParserFactory.newInstance();
@@ -145,10 +162,14 @@ public class GeoRSSManager {
 		xr.setContentHandler(handler);
 
 		/* Parse the xml-data from our URL. */
-		InputSource in = new InputSource(url.openStream());
+		InputSource in = new InputSource(response.getInputStream());
 		in.setEncoding(GeoRSSUtils.ENCODING);
 
-		xr.parse(in);
+		try {
+			xr.parse(in);
+		} finally {
+			response.close();
+		}
 
 		ParsedGeoRSSFeed parsedFeed = handler.getParsedData();
 
@@ -171,6 +192,7 @@ public class GeoRSSManager {
 			entry.geoRSSID = feedId;
 			db.addEntry(entry);
 		}
+		response.commit();
 
 	}
 }
@@ -15,8 +15,9 @@
  */
 package mmenning.mobilegis.map.georss;
 
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Locale;
+import java.util.Date;
 
 import android.util.Log;
 
@@ -31,15 +32,16 @@ public class GeoRSSUtils {
 
 	private static final String DT = "GeoRSSUtils";
 	/**
-	 * DateFormat to format Strings from a GeoRSSFeed
+	 * DateFormat to display GeoRSSEntry.time, one for each Thread as
+	 * SimpleDateFormat is not thread-safe. Times from a GeoRSSFeed are parsed
+	 * by TimeCodec.
 	 */
-	public static final SimpleDateFormat rssTimeFormat = new SimpleDateFormat(
-			"EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
-	/**
-	 * DateFormat to display GeoRSSEntry.time
-	 */
-	public static final SimpleDateFormat displayTimeFormat = new SimpleDateFormat(
-			"EE dd MMM yyy HH:mm:ss Z");
+	private static final ThreadLocal<DateFormat> displayTimeFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("EE dd MMM yyy HH:mm:ss Z");
+		}
+	};
 
 	/**
 	 * Default Color for GeoRSSFedd
@@ -71,4 +73,15 @@ public class GeoRSSUtils {
 		return ret;
 
 	}
+
+	/**
+	 * Format a GeoRSSEntry.time to be displayed.
+	 * 
+	 * @param time
+	 *            time of the entry
+	 * @return formatted time
+	 */
+	public static String formatDisplayTime(Date time) {
+		return displayTimeFormat.get().format(time);
+	}
 }
@@ -15,18 +15,23 @@
  */
 package mmenning.mobilegis.map.sos;
 
-import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.util.Log;
-
 /**
  * Simple DefaultHandler to read a GetObservation response on a
  * SensorObservationService.
  * 
+ * A response may contain several features, the values are collected in one
+ * ParsedObservationData for each feature. The feature of a value is taken
+ * from its block in swe:values, positions are taken from the gml:id of the
+ * features in om:featureOfInterest or from its xlink:href. If a member has
+ * only one feature, values of unknown features belong to it.
+ * 
  * based upon OGC 06-009r6 but not yet full!
  * 
  * @see SOSUtils for used Namespaces
@@ -35,7 +40,8 @@ import android.util.Log;
  * @version 11.11.2009
  * 
  */
-public class GetObservationHandler extends DefaultHandler {
+public class GetObservationHandler extends DefaultHandler implements
+		TextBlockTokenizer.Target {
 
 	private static final String DT = "GetObservationHandler";
 
@@ -57,6 +63,8 @@ public class GetObservationHandler extends DefaultHandler {
 	 * Attributes
 	 */
 	private static final String code = "code";
+	private static final String id = "id";
+	private static final String href = "href";
 	private static final String decimalSeparator = "decimalSeparator";
 	private static final String tokenSeparator = "tokenSeparator";
 	private static final String blockSeparator = "blockSeparator";
@@ -75,15 +83,35 @@ public class GetObservationHandler extends DefaultHandler {
 
 	private boolean in_values;
 
-	private ParsedObservationData data;
+	/**
+	 * feature identifier -> data, in order of appearance
+	 */
+	private HashMap<String, ParsedObservationData> data;
+	private ArrayList<ParsedObservationData> features;
+
+	/**
+	 * first feature of the current member, count of its features and the
+	 * feature of the current position
+	 */
+	private String memberFeature;
+	private int memberFeatureCount;
+	private String posFeature;
+	private String unit;
 
 	private String tokSep;
 	private String bloSep;
+	private String decSep;
 
 	private StringBuffer charBuffer;
 
+	/**
+	 * reads the values while they are parsed
+	 */
+	private TextBlockTokenizer tokenizer;
+
 	public GetObservationHandler() {
-		data = new ParsedObservationData();
+		data = new HashMap<String, ParsedObservationData>();
+		features = new ArrayList<ParsedObservationData>();
 	}
 
 	@Override
@@ -97,7 +125,7 @@ public class GetObservationHandler extends DefaultHandler {
 				}
 			} else if (in_result) {
 				if (in_values) {
-					charBuffer.append(ch, start, length);
+					tokenizer.append(ch, start, length);
 				}
 			}
 		}
@@ -116,9 +144,17 @@ public class GetObservationHandler extends DefaultHandler {
 					 */
 					// Log.d(DT, "parsing pos "+charBuffer.toString());
 
-					String[] pos = charBuffer.toString().split(" ");
-					data.LatE6 = SOSUtils.stringToE6(pos[1]);
-					data.LonE6 = SOSUtils.stringToE6(pos[0]);
+					String[] pos = charBuffer.toString().trim().split(" ");
+					if (pos.length >= 2) {
+						if (posFeature == null && memberFeature == null) {
+							memberFeature = "";
+							memberFeatureCount = 1;
+						}
+						ParsedObservationData d = get(posFeature != null ? posFeature
+								: memberFeature);
+						d.LatE6 = SOSUtils.stringToE6(pos[1]);
+						d.LonE6 = SOSUtils.stringToE6(pos[0]);
+					}
 
 				} else if (localName.equals(featureOfInterest)) {
 					in_featureOfInterest = false;
@@ -131,31 +167,8 @@ public class GetObservationHandler extends DefaultHandler {
 					in_SimpleDataRecord = false;
 				} else if (in_values && localName.equals(values)) {
 					in_values = false;
-					/*
-					 * parse values
-					 */
-					String[] measurements = charBuffer.toString().split(bloSep);
-
-					for (int i = 0; i < measurements.length; i++) {
-
-						String[] measure = measurements[i].split(tokSep);
-
-						if (measure.length == 3) {
-
-							try {
-								data.times.add(SOSUtils.sosDateFormat
-										.parse(measure[0]));
-								data.values.add(Float.valueOf(measure[2]));
-
-							} catch (ParseException e) {
-								Log.w(DT, e);
-							} catch (NumberFormatException e) {
-								// data.values.add(Float.NaN);
-								data.times.remove();
-								// Log.w(DT, measure[2]);
-							}
-						}
-					}
+					tokenizer.finish();
+					tokenizer = null;
 				} else if (uri.equals(SOSUtils.omNamespace)) {
 					if (localName.equals(result)) {
 						in_result = false;
@@ -163,6 +176,10 @@ public class GetObservationHandler extends DefaultHandler {
 				}
 			} else if (localName.equals(member)) {
 				in_member = false;
+				memberFeature = null;
+				memberFeatureCount = 0;
+				posFeature = null;
+				unit = null;
 			}
 		}
 	}
@@ -175,6 +192,17 @@ public class GetObservationHandler extends DefaultHandler {
 				/*
 				 * TODO differentiate between points, polygons etc.
 				 */
+				String featureID = attributes.getValue(SOSUtils.gmlNamespace,
+						id);
+				if (featureID != null && !uri.equals(SOSUtils.gmlNamespace)) {
+					posFeature = featureID;
+					if (memberFeature == null) {
+						memberFeature = featureID;
+						memberFeatureCount = 1;
+					} else if (!memberFeature.equals(featureID)) {
+						memberFeatureCount++;
+					}
+				}
 				if (uri.equals(SOSUtils.gmlNamespace)) {
 					if (localName.equals(pos)) {
 						in_pos = true;
@@ -185,12 +213,13 @@ public class GetObservationHandler extends DefaultHandler {
 				if (uri.equals(SOSUtils.sweNamespace)) {
 					if (in_SimpleDataRecord) {
 						if (localName.equals(uom)) {
-							data.unit = attributes.getValue(code);
+							unit = attributes.getValue(code);
 						}
 					} else if (in_encoding) {
 						if (localName.equals(TextBlock)) {
 							tokSep = attributes.getValue(tokenSeparator);
 							bloSep = attributes.getValue(blockSeparator);
+							decSep = attributes.getValue(decimalSeparator);
 						}
 					} else {
 						if (localName.equals(SimpleDataRecord)) {
@@ -199,7 +228,8 @@ public class GetObservationHandler extends DefaultHandler {
 							in_encoding = true;
 						} else if (localName.equals(values)) {
 							in_values = true;
-							charBuffer = new StringBuffer();
+							tokenizer = new TextBlockTokenizer(tokSep, bloSep,
+									decSep, this);
 						}
 					}
 				}
@@ -210,6 +240,9 @@ public class GetObservationHandler extends DefaultHandler {
 						in_result = true;
 					} else if (localName.equals(featureOfInterest)) {
 						in_featureOfInterest = true;
+						memberFeature = attributes.getValue(
+								SOSUtils.xlinkNamespace, href);
+						memberFeatureCount = memberFeature != null ? 1 : 0;
 					}
 				}
 			}
@@ -226,7 +259,37 @@ public class GetObservationHandler extends DefaultHandler {
 		super.endDocument();
 	}
 
-	public ParsedObservationData getParsedData() {
-		return data;
+	/**
+	 * Get the data of a feature, it is created if it did not appear yet. The
+	 * unit of the current member is applied to it.
+	 * 
+	 * @param feature
+	 *            identifier of the feature
+	 * @return the data of the feature
+	 */
+	public ParsedObservationData get(String feature) {
+		ParsedObservationData d = data.get(feature);
+		if (d == null && memberFeatureCount == 1) {
+			d = data.get(memberFeature);
+			if (d != null) {
+				data.put(feature, d);
+			}
+		}
+		if (d == null) {
+			d = new ParsedObservationData(feature);
+			data.put(feature, d);
+			features.add(d);
+		}
+		if (unit != null) {
+			d.unit = unit;
+		}
+		return d;
+	}
+
+	/**
+	 * @return the data of all features in order of appearance
+	 */
+	public ParsedObservationData[] getParsedData() {
+		return features.toArray(new ParsedObservationData[features.size()]);
 	}
 }
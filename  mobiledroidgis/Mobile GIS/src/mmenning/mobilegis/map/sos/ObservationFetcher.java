@@ -0,0 +1,382 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import mmenning.mobilegis.util.HttpConnector;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Sends several GetObservation requests to one SOS at the same time. Every
+ * fetching Thread parses the response while it is read and hands the parsed
+ * data over to the Thread calling {@link #take()}, which stores it while the
+ * next responses are still loading.
+ *
+ * Not more than the given count of requests are running against the same url
+ * at the same time, counted over all ObservationFetchers, so the limit holds
+ * however many updates of one SOS run at once. Fetching Threads wait while too
+ * much parsed data is not taken yet. After the first failed request no further
+ * requests are started and take() throws its Exception.
+ *
+ * @see {@link SOSManager}
+ */
+class ObservationFetcher {
+
+	private static final String DT = "ObservationFetcher";
+
+	/**
+	 * url -> count of requests running against it, by all
+	 * ObservationFetchers
+	 */
+	private static final HashMap<String, Integer> runningPerURL = new HashMap<String, Integer>();
+
+	private HttpConnector http;
+
+	private String getObservationPost;
+
+	private String[] requests;
+
+	private ParsedObservationData[][] results;
+
+	/**
+	 * indices of the finished requests in the order they finished
+	 */
+	private LinkedList<Integer> finished;
+
+	/**
+	 * index of the next request to start
+	 */
+	private int next;
+
+	private int taken;
+
+	private int maxRunning;
+
+	private int maxPending;
+
+	private Exception error;
+
+	private int failed = -1;
+
+	private boolean cancelled;
+
+	/**
+	 * Instantiate a new ObservationFetcher.
+	 *
+	 * @param http
+	 *            HttpConnector to send the requests with
+	 * @param getObservationPost
+	 *            url to post the requests to
+	 * @param requests
+	 *            GetObservation requests as xml
+	 */
+	ObservationFetcher(HttpConnector http, String getObservationPost,
+			String[] requests) {
+		this.http = http;
+		this.getObservationPost = getObservationPost;
+		this.requests = requests;
+		this.results = new ParsedObservationData[requests.length][];
+		this.finished = new LinkedList<Integer>();
+	}
+
+	/**
+	 * Start sending the requests.
+	 *
+	 * @param maxRunning
+	 *            maximum count of requests running against the url at the
+	 *            same time
+	 */
+	void start(int maxRunning) {
+		this.maxRunning = maxRunning;
+		maxPending = 2 * maxRunning;
+		int threads = Math.min(maxRunning, requests.length);
+		for (int i = 0; i < threads; i++) {
+			Thread fetcher = new Thread(new Fetcher(), DT + "-" + i);
+			fetcher.setDaemon(true);
+			fetcher.start();
+		}
+	}
+
+	/**
+	 * Wait for the next finished request. Must be called once for every
+	 * request.
+	 *
+	 * @return index of the request, its data can be removed by
+	 *         {@link #remove(int)}
+	 * @throws IOException
+	 *             if a request failed or the calling Thread was interrupted
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	synchronized int take() throws IOException,
+			ParserConfigurationException, SAXException {
+		while (finished.isEmpty() && error == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				cancel();
+				throw new InterruptedIOException();
+			}
+		}
+		if (error != null) {
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			} else if (error instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) error;
+			} else if (error instanceof SAXException) {
+				throw (SAXException) error;
+			}
+			throw (RuntimeException) error;
+		}
+		taken++;
+		notifyAll();
+		return finished.removeFirst().intValue();
+	}
+
+	/**
+	 * Remove the parsed data of a finished request.
+	 *
+	 * @param index
+	 *            index of the request as returned by take()
+	 * @return the parsed data of all features of the request
+	 */
+	synchronized ParsedObservationData[] remove(int index) {
+		ParsedObservationData[] ret = results[index];
+		results[index] = null;
+		return ret;
+	}
+
+	/**
+	 * @return index of the request which failed or -1 if none failed
+	 */
+	synchronized int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Start no further requests. Running requests will be finished.
+	 */
+	void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			notifyAll();
+		}
+		wakeWaiting();
+	}
+
+	/**
+	 * Send a GetObservation request and parse the response. It waits while
+	 * SOSUtils.maxRequestsPerSOS requests are running against the url.
+	 *
+	 * @param http
+	 *            HttpConnector to send the request with
+	 * @param getObservationPost
+	 *            url to post the request to
+	 * @param getObservationRequest
+	 *            GetObservation request as xml
+	 * @return the parsed response, one ParsedObservationData for each feature
+	 * @throws IOException
+	 * @throws ParserConfigurationException
+	 * @throws SAXException
+	 */
+	static ParsedObservationData[] request(HttpConnector http,
+			String getObservationPost, String getObservationRequest)
+			throws IOException, ParserConfigurationException, SAXException {
+		try {
+			acquire(getObservationPost, SOSUtils.maxRequestsPerSOS, null);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		try {
+			return send(http, getObservationPost, getObservationRequest);
+		} finally {
+			release(getObservationPost);
+		}
+	}
+
+	/**
+	 * Send a GetObservation request and parse the response while it is read.
+	 */
+	private static ParsedObservationData[] send(HttpConnector http,
+			String getObservationPost, String getObservationRequest)
+			throws IOException, ParserConfigurationException, SAXException {
+
+		HttpConnector.Response response = http.post(getObservationPost,
+				getObservationRequest, "text/xml");
+		/* Get a SAXParser from the SAXPArserFactory. */
+		SAXParserFactory spf = SAXParserFactory.newInstance();
+		SAXParser sp = spf.newSAXParser();
+
+		/* Get the XMLReader of the SAXParser we created. *///
+		XMLReader xr = sp.getXMLReader();
+		/* Create a new ContentHandler and apply it to the XML-Reader */
+		GetObservationHandler xmlhandler = new GetObservationHandler();
+		xr.setContentHandler(xmlhandler);
+
+		/* Parse the xml-data from our URL. */
+		InputSource in = new InputSource(response.getInputStream());
+		in.setEncoding(SOSUtils.ENCODING);
+
+		try {
+			xr.parse(in);
+		} finally {
+			response.close();
+		}
+
+		return xmlhandler.getParsedData();
+	}
+
+	/**
+	 * Wait until less than max requests are running against the url and
+	 * count one more. Must not be called while an ObservationFetcher is
+	 * locked.
+	 *
+	 * @param fetcher
+	 *            ObservationFetcher to give up waiting for if it is cancelled
+	 *            or failed, may be null
+	 * @return false if the fetcher was stopped, nothing is counted then
+	 */
+	private static boolean acquire(String url, int max,
+			ObservationFetcher fetcher) throws InterruptedException {
+		synchronized (runningPerURL) {
+			while (runningFor(url) >= max) {
+				if (fetcher != null && fetcher.isStopped()) {
+					return false;
+				}
+				runningPerURL.wait();
+			}
+			runningPerURL.put(url, Integer.valueOf(runningFor(url) + 1));
+			return true;
+		}
+	}
+
+	/**
+	 * Wake up the Threads waiting in acquire(), so stopped fetchers give up.
+	 */
+	private static void wakeWaiting() {
+		synchronized (runningPerURL) {
+			runningPerURL.notifyAll();
+		}
+	}
+
+	/**
+	 * Count one request less running against the url.
+	 */
+	private static void release(String url) {
+		synchronized (runningPerURL) {
+			int count = runningFor(url) - 1;
+			if (count > 0) {
+				runningPerURL.put(url, Integer.valueOf(count));
+			} else {
+				runningPerURL.remove(url);
+			}
+			runningPerURL.notifyAll();
+		}
+	}
+
+	private static int runningFor(String url) {
+		Integer count = runningPerURL.get(url);
+		return count == null ? 0 : count.intValue();
+	}
+
+	private synchronized boolean isStopped() {
+		return cancelled || error != null;
+	}
+
+	/**
+	 * Store the first Exception and wake up the waiting Threads.
+	 */
+	private void fail(int index, Exception e) {
+		synchronized (this) {
+			if (error == null) {
+				error = e;
+				failed = index;
+			}
+			notifyAll();
+		}
+		wakeWaiting();
+	}
+
+	/**
+	 * Inner Class which sends the requests one after another.
+	 */
+	private class Fetcher implements Runnable {
+
+		public void run() {
+			while (true) {
+				int index;
+				synchronized (ObservationFetcher.this) {
+					/*
+					 * wait until the storing Thread caught up
+					 */
+					while (!cancelled && error == null
+							&& next - taken >= maxPending) {
+						try {
+							ObservationFetcher.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (cancelled || error != null || next == requests.length) {
+						return;
+					}
+					index = next++;
+				}
+				try {
+					if (!acquire(getObservationPost, maxRunning,
+							ObservationFetcher.this)) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					fail(index, new InterruptedIOException());
+					return;
+				}
+				/*
+				 * the fetcher may have been stopped while waiting
+				 */
+				if (isStopped()) {
+					release(getObservationPost);
+					return;
+				}
+				try {
+					ParsedObservationData[] data = send(http,
+							getObservationPost, requests[index]);
+					synchronized (ObservationFetcher.this) {
+						results[index] = data;
+						finished.addLast(Integer.valueOf(index));
+						ObservationFetcher.this.notifyAll();
+					}
+				} catch (Exception e) {
+					fail(index, e);
+					return;
+				} finally {
+					release(getObservationPost);
+				}
+			}
+		}
+	}
+}
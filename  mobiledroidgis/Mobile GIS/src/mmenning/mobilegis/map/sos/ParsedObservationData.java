@@ -15,9 +15,6 @@
  */
 package mmenning.mobilegis.map.sos;
 
-import java.util.Date;
-import java.util.LinkedList;
-
 /**
  * Model to hold data from a GetObservation Response.
  * 
@@ -27,6 +24,11 @@ import java.util.LinkedList;
  */
 public class ParsedObservationData {
 
+	/**
+	 * identifier of the feature
+	 */
+	public String feature;
+
 	/**
 	 * unit of the measurement
 	 */
@@ -42,17 +44,57 @@ public class ParsedObservationData {
 	public int LonE6;
 
 	/**
-	 * LinkedList of time (y-) values. Shall have the same length as values
+	 * time (y-) values in milliseconds, only the first count are valid
 	 */
-	public LinkedList<Date> times;
+	public long[] times;
 	/**
-	 * LinkedList of values (x). Shall have the same length as times.
+	 * values (x), only the first count are valid
 	 */
-	public LinkedList<Float> values;
+	public float[] values;
+	/**
+	 * count of valid times and values
+	 */
+	public int count;
 	
-	public ParsedObservationData(){
-		times = new LinkedList<Date>();
-		values = new LinkedList<Float>();
+	public ParsedObservationData(String feature){
+		this.feature = feature;
+		times = new long[16];
+		values = new float[16];
+	}
+
+	/**
+	 * Append a time and its value, the arrays grow if necessary.
+	 * 
+	 * @param time
+	 *            in milliseconds
+	 * @param value
+	 */
+	public void add(long time, float value) {
+		if (count == times.length) {
+			long[] t = new long[count * 2];
+			System.arraycopy(times, 0, t, 0, count);
+			times = t;
+			float[] v = new float[count * 2];
+			System.arraycopy(values, 0, v, 0, count);
+			values = v;
+		}
+		times[count] = time;
+		values[count] = value;
+		count++;
+	}
+
+	/**
+	 * @return the youngest (greatest) time in milliseconds or 0 if there are
+	 *         no values
+	 */
+	public long getYoungestTime() {
+		long ret = 0;
+		for (int i = 0; i < count; i++) {
+			if (times[i] > ret) {
+				ret = times[i];
+			}
+		}
+		return ret;
 	}
 
 }
@@ -26,6 +26,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -40,7 +41,9 @@ import android.util.Log;
  * Mesurements consist of Measurement (Meta-) Data and the values stored as
  * TimeValuePairs. A Measurement represents the result of a single
  * GetObservation Request. </br> To manage quick and cheap access all this Data
- * is identified by over the whole database definite ids.
+ * is identified by over the whole database definite ids. </br> The SyncState of
+ * every Measurement is stored apart from the values, so updates only read
+ * and write this single row.
  * 
  * @author Mathias Menninghaus
  * @version 11.11.2009
@@ -51,12 +54,12 @@ public class SOSDB {
 	private static final String DT = "SOSDB";
 
 	private static final String DATABASE_NAME = "SOSData";
-	private static final int DATABASE_VERSION = 1;
+	private static final int DATABASE_VERSION = 2;
 
 	private static final int TRUE = 1;
 	private static final int FALSE = 0;
 
-	private static final String NaN = "2143289344";
+	private static final long NaN = 2143289344L;
 
 	/*
 	 * Tables
@@ -67,6 +70,7 @@ public class SOSDB {
 	private static final String Feature_TABLE = "Feature";
 	private static final String Measures_TABLE = "Measures";
 	private static final String Measure_TABLE = "Measure";
+	private static final String Sync_TABLE = "SyncState";
 
 	/*
 	 * Fields
@@ -102,6 +106,12 @@ public class SOSDB {
 	private static final String Measure_time = "time";
 	private static final String Measure_value = "value";
 
+	private static final String Sync_property = "property";
+	private static final String Sync_feature = "feature";
+	private static final String Sync_fetched = "fetched";
+	private static final String Sync_attempt = "attempt";
+	private static final String Sync_failures = "failures";
+
 	/*
 	 * Create Table Statements
 	 */
@@ -138,6 +148,24 @@ public class SOSDB {
 			+ " REAL, PRIMARY KEY (" + Measure_measurement + ", "
 			+ Measure_time + ")) ";
 
+	private static final String CREATE_SyncState = "CREATE TABLE "
+			+ Sync_TABLE + " (" + Sync_property + " INTEGER, " + Sync_feature
+			+ " INTEGER, " + Sync_fetched + " INTEGER, " + Sync_attempt
+			+ " INTEGER, " + Sync_failures + " INTEGER, PRIMARY KEY ("
+			+ Sync_property + ", " + Sync_feature + "))";
+
+	/**
+	 * fills the SyncState from the stored values when upgrading from version 1
+	 */
+	private static final String INIT_SyncState = "INSERT OR REPLACE INTO "
+			+ Sync_TABLE + " SELECT " + Measures_TABLE + "."
+			+ Measures_property + ", " + Measures_TABLE + "."
+			+ Measures_feature + ", max(" + Measure_TABLE + "." + Measure_time
+			+ "), 0, 0 FROM " + Measures_TABLE + ", " + Measure_TABLE
+			+ " WHERE " + Measure_TABLE + "." + Measure_measurement + "="
+			+ Measures_TABLE + "." + ID + " GROUP BY " + Measures_TABLE + "."
+			+ ID;
+
 	/**
 	 * 
 	 * Helper Class to manage connection and first-time generation of the
@@ -172,7 +200,27 @@ public class SOSDB {
 			+ ", "
 			+ Measure_value
 			+ ", "
-			+ Measure_measurement + ") VALUES";
+			+ Measure_measurement + ") VALUES(?, ?, ?)";
+
+	private static final String querySyncStateValue = "coalesce((SELECT %s FROM "
+			+ Sync_TABLE
+			+ " WHERE "
+			+ Sync_property
+			+ "=? AND "
+			+ Sync_feature + "=?), 0)";
+
+	private static final String syncSucceededBase = "INSERT OR REPLACE INTO "
+			+ Sync_TABLE + "(" + Sync_property + ", " + Sync_feature + ", "
+			+ Sync_fetched + ", " + Sync_attempt + ", " + Sync_failures
+			+ ") VALUES(?, ?, max(?, "
+			+ String.format(querySyncStateValue, Sync_fetched) + "), ?, 0)";
+
+	private static final String syncFailedBase = "INSERT OR REPLACE INTO "
+			+ Sync_TABLE + "(" + Sync_property + ", " + Sync_feature + ", "
+			+ Sync_fetched + ", " + Sync_attempt + ", " + Sync_failures
+			+ ") VALUES(?, ?, "
+			+ String.format(querySyncStateValue, Sync_fetched) + ", ?, "
+			+ String.format(querySyncStateValue, Sync_failures) + " + 1)";
 
 	private static final String countAllQuery = "SELECT count(" + ID
 			+ ") FROM " + Measures_TABLE + " WHERE " + Measures_property + "=?";
@@ -201,10 +249,22 @@ public class SOSDB {
 
 	/**
 	 * Add ParsedObservationData to the Database. Already contained measurement
-	 * Data will only be updated, if there is an empty entry.
+	 * Data will only be updated, if there is an empty entry. All values are
+	 * inserted in one transaction.
 	 */
 	public void addMeasurementData(ParsedObservationData data, int featureID,
 			int propertyID) {
+		db.beginTransaction();
+		try {
+			addMeasurementDataInTransaction(data, featureID, propertyID);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private void addMeasurementDataInTransaction(ParsedObservationData data,
+			int featureID, int propertyID) {
 
 		ContentValues values = new ContentValues();
 		values.put(Measures_latE6, data.LatE6);
@@ -220,7 +280,8 @@ public class SOSDB {
 		} else {
 			db.update(Measures_TABLE, values, ID + "=" + measurementID, null);
 		}
-		insertOrIgnoreMeasure(data.times, data.values, measurementID);
+		insertOrIgnoreMeasure(data.times, data.values, data.count,
+				measurementID);
 	}
 
 	/**
@@ -1038,6 +1099,66 @@ public class SOSDB {
 
 	}
 
+	/**
+	 * Get the SyncState of a Measurement.
+	 * 
+	 * @param propertyID
+	 *            database id of the related Property
+	 * @param featureID
+	 *            database id of the related Feature
+	 * @return the SyncState, empty if the Measurement was never requested
+	 */
+	public SyncState getSyncState(int propertyID, int featureID) {
+		Cursor c = db.query(Sync_TABLE, new String[] { Sync_fetched,
+				Sync_attempt, Sync_failures }, Sync_property + "="
+				+ propertyID + " AND " + Sync_feature + "=" + featureID, null,
+				null, null, null);
+		SyncState ret = new SyncState();
+		ret.propertyID = propertyID;
+		ret.featureID = featureID;
+		if (c.moveToFirst()) {
+			ret.fetched = c.getLong(0);
+			ret.attempt = c.getLong(1);
+			ret.failures = c.getInt(2);
+		}
+		c.close();
+		return ret;
+	}
+
+	/**
+	 * Store a successful request of a Measurement. Its failures are reset.
+	 * 
+	 * @param propertyID
+	 *            database id of the related Property
+	 * @param featureID
+	 *            database id of the related Feature
+	 * @param fetched
+	 *            youngest time of the fetched values, the stored one is only
+	 *            replaced if it is younger
+	 * @param attempt
+	 *            time of the request
+	 */
+	public void setSyncSucceeded(int propertyID, int featureID, long fetched,
+			long attempt) {
+		db.execSQL(syncSucceededBase, new Object[] { propertyID, featureID,
+				fetched, propertyID, featureID, attempt });
+	}
+
+	/**
+	 * Store a failed request of a Measurement.
+	 * 
+	 * @param propertyID
+	 *            database id of the related Property
+	 * @param featureID
+	 *            database id of the related Feature
+	 * @param attempt
+	 *            time of the request
+	 */
+	public void setSyncFailed(int propertyID, int featureID, long attempt) {
+		db.execSQL(syncFailedBase, new Object[] { propertyID, featureID,
+				propertyID, featureID, attempt, propertyID, featureID });
+	}
+
 	/**
 	 * Get youngest (greatest) time value of a Measurement
 	 * 
@@ -1256,6 +1377,7 @@ public class SOSDB {
 		}
 		c.close();
 		db.delete(Measures_TABLE, Measures_property + "=" + propertyID, null);
+		db.delete(Sync_TABLE, Sync_property + "=" + propertyID, null);
 	}
 
 	private void deleteOffering(int offeringID) {
@@ -1337,37 +1459,45 @@ public class SOSDB {
 	}
 
 	/**
-	 * Inserts or replaces values of a measurement
+	 * Inserts or replaces values of a measurement with one compiled statement,
+	 * should be called in a transaction.
 	 * 
 	 * @param times
-	 *            time (y-) values should have the same length as values
+	 *            time (y-) values in milliseconds
 	 * @param values
-	 *            values (x) should have the same length as times
+	 *            values (x)
+	 * @param count
+	 *            count of times and values to insert
 	 * @param measurementID
 	 *            database id where the values should be inserted
-	 * @throws IllegalArgumentExcpetion
-	 *             if the lists dont have the same length
 	 */
-	private void insertOrIgnoreMeasure(LinkedList<Date> times,
-			LinkedList<Float> values, int measurementID) {
+	private void insertOrIgnoreMeasure(long[] times, float[] values,
+			int count, int measurementID) {
 
-		if (times.size() != values.size()) {
-			Log.w(DT, "times size(" + times.size() + ") != values size ("
-					+ values.size() + ")");
+		if (times.length < count || values.length < count) {
+			Log.w(DT, "times length(" + times.length + ") or values length ("
+					+ values.length + ") < " + count);
 		} else {
 
-			if (!(times.isEmpty())) {
-
-				Iterator<Date> time = times.iterator();
-				Iterator<Float> value = values.iterator();
-
-				while (time.hasNext()) {
-					float val = value.next().floatValue();
-
-					db.execSQL(insertOrIgnoreMeasureBase + "("
-							+ time.next().getTime() + ", "
-							+ (Float.isNaN(val) ? NaN : val) + ", "
-							+ measurementID + ")");
+			if (count > 0) {
+
+				SQLiteStatement insert = db
+						.compileStatement(insertOrIgnoreMeasureBase);
+				try {
+					insert.bindLong(3, measurementID);
+					for (int i = 0; i < count; i++) {
+						float val = values[i];
+
+						insert.bindLong(1, times[i]);
+						if (Float.isNaN(val)) {
+							insert.bindLong(2, NaN);
+						} else {
+							insert.bindDouble(2, val);
+						}
+						insert.execute();
+					}
+				} finally {
+					insert.close();
 				}
 
 			} else {
@@ -1458,18 +1588,29 @@ public class SOSDB {
 			sqldb.execSQL(CREATE_Feature);
 			sqldb.execSQL(CREATE_Measures);
 			sqldb.execSQL(CREATE_Measure);
+			sqldb.execSQL(CREATE_SyncState);
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase sqldb, int oldVersion,
 				int newVersion) {
 
+			if (oldVersion == 1) {
+				/*
+				 * keep the stored data, only the SyncState is new
+				 */
+				sqldb.execSQL(CREATE_SyncState);
+				sqldb.execSQL(INIT_SyncState);
+				return;
+			}
+
 			sqldb.execSQL("DROP TABLE IF EXISTS " + SOS_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + Offering_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + Property_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + Feature_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + Measures_TABLE);
 			sqldb.execSQL("DROP TABLE IF EXISTS " + Measure_TABLE);
+			sqldb.execSQL("DROP TABLE IF EXISTS " + Sync_TABLE);
 
 			onCreate(sqldb);
 		}
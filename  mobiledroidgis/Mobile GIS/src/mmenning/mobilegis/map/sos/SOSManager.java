@@ -16,12 +16,8 @@
 package mmenning.mobilegis.map.sos;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.UnknownHostException;
 import java.util.Date;
 
@@ -30,6 +26,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import mmenning.mobilegis.R;
+import mmenning.mobilegis.util.HttpConnector;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -62,10 +59,13 @@ public class SOSManager {
 	private SOSDB db;
 	private Handler handler;
 	private Context context;
+	private HttpConnector http;
 
 	private long requestRange;
 
 	private long storeRange;
+
+	private int featuresPerRequest;
 	public static final int START = 10;
 
 	/*
@@ -93,6 +93,7 @@ public class SOSManager {
 
 		this.handler = handler;
 		this.context = ctx;
+		this.http = HttpConnector.getShared(ctx);
 		db = new SOSDB(context);
 		SharedPreferences sharedPreferences = PreferenceManager
 				.getDefaultSharedPreferences(context);
@@ -100,12 +101,18 @@ public class SOSManager {
 		final String requestRangeString = context
 				.getString(R.string.requestperiod);
 		final String storeRangeString = context.getString(R.string.storeperiod);
+		final String featuresPerRequestString = context
+				.getString(R.string.featuresperrequest);
 
 		requestRange = Long.parseLong(sharedPreferences.getString(
 				requestRangeString, "" + SOSUtils.defaultDataRange));
 
 		storeRange = Long.parseLong(sharedPreferences.getString(
 				storeRangeString, "" + SOSUtils.defaultDataRange));
+
+		featuresPerRequest = Integer.parseInt(sharedPreferences.getString(
+				featuresPerRequestString, ""
+						+ SOSUtils.defaultFeaturesPerRequest));
 		sharedPreferences
 				.registerOnSharedPreferenceChangeListener(new OnSharedPreferenceChangeListener() {
 
@@ -120,6 +127,11 @@ public class SOSManager {
 							storeRange = Long.parseLong(sharedPreferences
 									.getString(storeRangeString, ""
 											+ SOSUtils.defaultDataRange));
+						} else if (key.equals(featuresPerRequestString)) {
+							featuresPerRequest = Integer
+									.parseInt(sharedPreferences.getString(
+											featuresPerRequestString, ""
+													+ SOSUtils.defaultFeaturesPerRequest));
 						}
 
 					}
@@ -142,7 +154,8 @@ public class SOSManager {
 			msg.arg1 = 1;
 			handler.sendMessage(msg);
 
-			URL url = new URL(SOSUtils.generateGetCapabilitiesURL(sosUrl));
+			HttpConnector.Response response = http.get(SOSUtils
+					.generateGetCapabilitiesURL(sosUrl), false);
 
 			/* Get a SAXParser from the SAXPArserFactory. */
 			SAXParserFactory spf = SAXParserFactory.newInstance();
@@ -155,10 +168,14 @@ public class SOSManager {
 			xr.setContentHandler(xmlhandler);
 
 			/* Parse the xml-data from our URL. */
-			InputSource in = new InputSource(url.openStream());
+			InputSource in = new InputSource(response.getInputStream());
 			in.setEncoding(SOSUtils.ENCODING);
 
-			xr.parse(in);
+			try {
+				xr.parse(in);
+			} finally {
+				response.close();
+			}
 
 			ParsedSOSCapabilities parsedCaps = xmlhandler.getParsedData();
 
@@ -231,12 +248,14 @@ public class SOSManager {
 					.generateGetObservationRequest(offeringData.offering,
 							feature, property, startTime, endTime);
 
-			ParsedObservationData parsedObs = this.makeGetObservationRequest(db
-					.getSOS(offeringData.sosID).getObservationPost,
+			ParsedObservationData[] parsedObs = this.makeGetObservationRequest(
+					db.getSOS(offeringData.sosID).getObservationPost,
 					getObservationRequest);
 
 			clip();
-			db.addMeasurementData(parsedObs, featureID, propertyID);
+			store(parsedObs, new String[] { feature },
+					new int[] { featureID }, propertyID, System
+							.currentTimeMillis());
 
 			db.close();
 			handler.sendEmptyMessage(SUCCESS);
@@ -294,13 +313,9 @@ public class SOSManager {
 			msg.arg1 = features.length;
 			handler.sendMessage(msg);
 
-			for (int i = 0; i < features.length; i++) {
-
-				this.update(offering, property, features[i], propertyID,
-						featureIDs[i], getObservationPost);
+			this.updateAll(offering, property, features, propertyID,
+					featureIDs, getObservationPost);
 
-				handler.sendEmptyMessage(NEXTELEMENT);
-			}
 			clip();
 			db.close();
 
@@ -361,15 +376,15 @@ public class SOSManager {
 			msg.arg1 = measurementData.length;
 			handler.sendMessage(msg);
 
+			String[] features = new String[measurementData.length];
+			int[] featureIDs = new int[measurementData.length];
 			for (int i = 0; i < measurementData.length; i++) {
-
-				this.update(offering, property, db
-						.getFeature(measurementData[i].featureID), propertyID,
-						measurementData[i].featureID,
-						sosData.getObservationPost);
-
-				handler.sendEmptyMessage(NEXTELEMENT);
+				featureIDs[i] = measurementData[i].featureID;
+				features[i] = db.getFeature(featureIDs[i]);
 			}
+			this.updateAll(offering, property, features, propertyID,
+					featureIDs, sosData.getObservationPost);
+
 			clip();
 			db.close();
 			handler.sendEmptyMessage(SUCCESS);
@@ -439,6 +454,7 @@ public class SOSManager {
 					.update(offeringData.offering, property, feature,
 							propertyID, featureID,
 							db.getSOS(offeringData.sosID).getObservationPost);
+			clip();
 
 			db.close();
 			handler.sendEmptyMessage(SUCCESS);
@@ -475,48 +491,19 @@ public class SOSManager {
 				clip[SOSUtils.ENDDATE]);
 	}
 
-	private ParsedObservationData makeGetObservationRequest(
+	private ParsedObservationData[] makeGetObservationRequest(
 			String getObservationPost, String getObservationRequest)
 			throws IOException, ParserConfigurationException, SAXException {
 
 		// Log.d(DT, getObservationRequest);
 
-		URL url = new URL(getObservationPost);
-		URLConnection conn = url.openConnection();
-		conn.setDoOutput(true);
-		conn.setDoInput(true);
-
-		OutputStreamWriter out = new OutputStreamWriter(conn.getOutputStream());
-
-		out.write(getObservationRequest);
-		out.flush();
-		out.close();
-		/* Get a SAXParser from the SAXPArserFactory. */
-		SAXParserFactory spf = SAXParserFactory.newInstance();
-		SAXParser sp = spf.newSAXParser();
-
-		/* Get the XMLReader of the SAXParser we created. *///
-		XMLReader xr = sp.getXMLReader();
-		/* Create a new ContentHandler and apply it to the XML-Reader */
-		GetObservationHandler xmlhandler = new GetObservationHandler();
-		xr.setContentHandler(xmlhandler);
-
-		/* Parse the xml-data from our URL. */
-		InputStream input = conn.getInputStream();
-		InputSource in = new InputSource(input);
-		in.setEncoding(SOSUtils.ENCODING);
-
-		xr.parse(in);
-
-		input.close();
-
-		return xmlhandler.getParsedData();
+		return ObservationFetcher.request(http, getObservationPost,
+				getObservationRequest);
 	}
 
-	private Date[] requestUpdateRange(int propertyID, int featureID) {
+	private Date[] requestUpdateRange(SyncState state) {
 
-		Date youngest = db.getYoungestMeasurementTime(propertyID, featureID);
-		return SOSUtils.calcRequestRange(requestRange, youngest);
+		return SOSUtils.calcRequestRange(requestRange, new Date(state.fetched));
 
 	}
 
@@ -524,15 +511,170 @@ public class SOSManager {
 			int propertyID, int featureID, String getObservationPost)
 			throws IOException, ParserConfigurationException, SAXException {
 
-		Date[] request = requestUpdateRange(propertyID, featureID);
+		long attempt = System.currentTimeMillis();
+		SyncState state = db.getSyncState(propertyID, featureID);
+		Date[] request = requestUpdateRange(state);
 		String getObservationRequest = SOSUtils.generateGetObservationRequest(
 				offering, feature, property, request[SOSUtils.STARTDATE],
 				request[SOSUtils.ENDDATE]);
 
-		ParsedObservationData parsedObs = this.makeGetObservationRequest(
-				getObservationPost, getObservationRequest);
-		clip();
-		db.addMeasurementData(parsedObs, featureID, propertyID);
+		/*
+		 * every way out without storing counts as a failed attempt
+		 */
+		boolean synced = false;
+		try {
+			ParsedObservationData[] parsedObs = this.makeGetObservationRequest(
+					getObservationPost, getObservationRequest);
+			store(parsedObs, new String[] { feature },
+					new int[] { featureID }, propertyID, attempt);
+			synced = true;
+		} finally {
+			if (!synced) {
+				db.setSyncFailed(propertyID, featureID, attempt);
+			}
+		}
+
+	}
+
+	/**
+	 * Update several Features of one SOS. Features whose last requests failed
+	 * are skipped for a while. The others are requested in batches of
+	 * featuresPerRequest, each from the oldest fetched time of its Features
+	 * on, and the batches are sent by an ObservationFetcher. The responses are
+	 * stored in the order they arrive and a NEXTELEMENT is sent for each
+	 * Feature. The stored data is not clipped.
+	 */
+	private void updateAll(String offering, String property,
+			String[] allFeatures, int propertyID, int[] allFeatureIDs,
+			String getObservationPost) throws IOException,
+			ParserConfigurationException, SAXException {
+
+		long attempt = System.currentTimeMillis();
+
+		String[] features = new String[allFeatures.length];
+		int[] featureIDs = new int[allFeatures.length];
+		SyncState[] states = new SyncState[allFeatures.length];
+		int count = 0;
+		for (int i = 0; i < allFeatures.length; i++) {
+			SyncState state = db.getSyncState(propertyID, allFeatureIDs[i]);
+			if (state.isBackedOff(attempt)) {
+				handler.sendEmptyMessage(NEXTELEMENT);
+			} else {
+				features[count] = allFeatures[i];
+				featureIDs[count] = allFeatureIDs[i];
+				states[count] = state;
+				count++;
+			}
+		}
+
+		int batchSize = Math.max(1, featuresPerRequest);
+		int batches = (count + batchSize - 1) / batchSize;
+		String[] requests = new String[batches];
+		for (int b = 0; b < batches; b++) {
+			int from = b * batchSize;
+			int to = Math.min(count, from + batchSize);
+			long fetched = states[from].fetched;
+			for (int i = from + 1; i < to; i++) {
+				fetched = Math.min(fetched, states[i].fetched);
+			}
+			Date[] request = SOSUtils.calcRequestRange(requestRange,
+					new Date(fetched));
+			requests[b] = SOSUtils.generateGetObservationRequest(offering,
+					batch(features, from, to), property,
+					request[SOSUtils.STARTDATE], request[SOSUtils.ENDDATE]);
+		}
+
+		ObservationFetcher fetcher = new ObservationFetcher(http,
+				getObservationPost, requests);
+		fetcher.start(SOSUtils.maxRequestsPerSOS);
+		/*
+		 * the batch taken from the fetcher and not stored yet and the batch
+		 * whose request failed count as failed attempts
+		 */
+		int storing = -1;
+		boolean synced = true;
+		try {
+			for (int i = 0; i < requests.length; i++) {
+				int b = fetcher.take();
+				storing = b;
+				synced = false;
+				int from = b * batchSize;
+				int to = Math.min(count, from + batchSize);
+				int[] ids = new int[to - from];
+				System.arraycopy(featureIDs, from, ids, 0, ids.length);
+				store(fetcher.remove(b), batch(features, from, to), ids,
+						propertyID, attempt);
+				synced = true;
+
+				for (int f = from; f < to; f++) {
+					handler.sendEmptyMessage(NEXTELEMENT);
+				}
+			}
+		} finally {
+			fetcher.cancel();
+			if (!synced) {
+				setSyncFailed(propertyID, featureIDs, storing * batchSize,
+						Math.min(count, (storing + 1) * batchSize), attempt);
+			}
+			int b = fetcher.getFailed();
+			if (b >= 0 && (synced || b != storing)) {
+				setSyncFailed(propertyID, featureIDs, b * batchSize, Math.min(
+						count, (b + 1) * batchSize), attempt);
+			}
+		}
+	}
+
+	private void setSyncFailed(int propertyID, int[] featureIDs, int from,
+			int to, long attempt) {
+		for (int f = from; f < to; f++) {
+			db.setSyncFailed(propertyID, featureIDs[f], attempt);
+		}
+	}
 
+	private static String[] batch(String[] features, int from, int to) {
+		String[] ret = new String[to - from];
+		System.arraycopy(features, from, ret, 0, ret.length);
+		return ret;
+	}
+
+	/**
+	 * Store the parsed data of a GetObservation request to the Features it
+	 * belongs to and mark all requested Features as synchronized. If only one
+	 * Feature was requested, all data belongs to it.
+	 * 
+	 * @param parsedObs
+	 *            parsed response
+	 * @param features
+	 *            requested Features
+	 * @param featureIDs
+	 *            database ids of the requested Features
+	 * @param propertyID
+	 *            database id of the requested Property
+	 * @param attempt
+	 *            time of the request
+	 */
+	private void store(ParsedObservationData[] parsedObs, String[] features,
+			int[] featureIDs, int propertyID, long attempt) {
+		long[] fetched = new long[features.length];
+		for (int i = 0; i < parsedObs.length; i++) {
+			int index = features.length == 1 ? 0 : -1;
+			for (int f = 0; f < features.length && index < 0; f++) {
+				if (features[f].equals(parsedObs[i].feature)) {
+					index = f;
+				}
+			}
+			if (index >= 0) {
+				db.addMeasurementData(parsedObs[i], featureIDs[index],
+						propertyID);
+				fetched[index] = Math.max(fetched[index], parsedObs[i]
+						.getYoungestTime());
+			} else {
+				Log.w(DT, "unrequested feature " + parsedObs[i].feature);
+			}
+		}
+		for (int f = 0; f < features.length; f++) {
+			db.setSyncSucceeded(propertyID, featureIDs[f], fetched[f],
+					attempt);
+		}
 	}
 }
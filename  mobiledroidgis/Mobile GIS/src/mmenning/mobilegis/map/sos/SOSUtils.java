@@ -15,9 +15,11 @@
  */
 package mmenning.mobilegis.map.sos;
 
+import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import mmenning.mobilegis.util.TimeCodec;
 import android.util.Log;
 
 /**
@@ -51,8 +53,16 @@ public class SOSUtils {
 	public static final String sosSchema = "http://www.opengis.net/sos/1.0";
 	public static final String GetObservationSchema = "http://schemas.opengis.net/sos/1.0.0/sosGetObservation.xsd";
 
-	public static final SimpleDateFormat sosDisplayFormat = new SimpleDateFormat(
-			"dd.MM.yyyy-HH:mm");
+	/**
+	 * DateFormat to display measurement times, one for each Thread as
+	 * SimpleDateFormat is not thread-safe
+	 */
+	private static final ThreadLocal<DateFormat> sosDisplayFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("dd.MM.yyyy-HH:mm");
+		}
+	};
 
 	/**
 	 * Currently supported version is 1.0.0
@@ -65,6 +75,30 @@ public class SOSUtils {
 	public static final String srsName = "EPSG:4326";
 
 	public static final long defaultDataRange = 60000;
+
+	/**
+	 * Maximum count of GetObservation requests sent to one SOS at the same
+	 * time while updating several Features
+	 */
+	public static final int maxRequestsPerSOS = 4;
+
+	/**
+	 * Default count of Features requested by one GetObservation request
+	 */
+	public static final int defaultFeaturesPerRequest = 10;
+
+	/**
+	 * Time in milliseconds to wait before a Measurement is requested again
+	 * after its request failed, doubles with every further failure
+	 */
+	public static final long syncRetryInterval = 60000;
+
+	/**
+	 * Maximum time in milliseconds to wait before a failed Measurement is
+	 * requested again
+	 */
+	public static final long maxSyncRetryInterval = 3600000;
+
 	/**
 	 * Encoding for a xml
 	 */
@@ -117,17 +151,11 @@ public class SOSUtils {
 			+ " </eventTime>"
 			+ " <observedProperty>%s</observedProperty>"
 			+ " <featureOfInterest>"
-			+ " <ObjectID>%s</ObjectID>"
+			+ "%s"
 			+ " </featureOfInterest>"
 			+ " <responseFormat>text/xml;subtype=&quot;om/1.0.0&quot;</responseFormat>"
 			+ " </GetObservation>";
 
-	/**
-	 * Date Format used in SOSs
-	 */
-	public static final SimpleDateFormat sosDateFormat = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ssZ");
-
 	public static final int STARTDATE = 0;
 
 	public static final int ENDDATE = 1;
@@ -195,12 +223,51 @@ public class SOSUtils {
 	public static String generateGetObservationRequest(String offering,
 			String feature, String property, Date startTime, Date endTime) {
 
-		return String.format(GetObservationBase, offering, sosDateFormat
-				.format(startTime), sosDateFormat.format(endTime), property,
-				feature);
+		return generateGetObservationRequest(offering,
+				new String[] { feature }, property, startTime, endTime);
+
+	}
+
+	/**
+	 * Generate GetObservation Request xml for several Features.
+	 * 
+	 * @param offering
+	 *            offering Identifier requested ObservationOffering
+	 * @param features
+	 *            Features
+	 * @param property
+	 *            Property
+	 * @param startTime
+	 *            start of the request as Date, must be smaller as endTime
+	 * @param endTime
+	 *            end of the request as Date, must be greater as startTime
+	 * @return GetObservation Request xml as String.
+	 */
+	public static String generateGetObservationRequest(String offering,
+			String[] features, String property, Date startTime, Date endTime) {
+
+		StringBuffer objectIDs = new StringBuffer();
+		for (int i = 0; i < features.length; i++) {
+			objectIDs.append(" <ObjectID>").append(features[i]).append(
+					"</ObjectID>");
+		}
+		return String.format(GetObservationBase, offering, TimeCodec
+				.formatISO8601(startTime.getTime()), TimeCodec
+				.formatISO8601(endTime.getTime()), property, objectIDs);
 
 	}
 
+	/**
+	 * Format a measurement time to be displayed.
+	 * 
+	 * @param time
+	 *            measurement time
+	 * @return time as dd.MM.yyyy-HH:mm
+	 */
+	public static String formatDisplayTime(Date time) {
+		return sosDisplayFormat.get().format(time);
+	}
+
 	/**
 	 * Formats a String which contains the latitude or longitude as Float to a
 	 * int by multiyplying it with 1E6.
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+/**
+ * Model for the synchronization state of a Measurement, which is kept in the
+ * database separately from the values so an update does not have to look at
+ * them.
+ * 
+ * @see {@link SOSDB}
+ */
+public class SyncState {
+
+	/**
+	 * database id for the related feature
+	 */
+	public int featureID;
+	/**
+	 * database id for the related property
+	 */
+	public int propertyID;
+
+	/**
+	 * youngest time of all fetched values in milliseconds, 0 if nothing was
+	 * fetched yet
+	 */
+	public long fetched;
+
+	/**
+	 * time of the last request in milliseconds, 0 if there was none
+	 */
+	public long attempt;
+
+	/**
+	 * count of failed requests since the last successful one
+	 */
+	public int failures;
+
+	/**
+	 * Estimate whether the Measurement should not be requested now because
+	 * its last requests failed. The waiting time starts with
+	 * {@link SOSUtils#syncRetryInterval} and doubles with every failure up to
+	 * {@link SOSUtils#maxSyncRetryInterval}.
+	 * 
+	 * @param now
+	 *            current time in milliseconds
+	 * @return true if the Measurement should be skipped
+	 */
+	public boolean isBackedOff(long now) {
+		if (failures == 0) {
+			return false;
+		}
+		long interval = SOSUtils.syncRetryInterval << Math.min(failures - 1,
+				16);
+		return now < attempt
+				+ Math.min(interval, SOSUtils.maxSyncRetryInterval);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.sos;
+
+import mmenning.mobilegis.util.TimeCodec;
+
+/**
+ * Reads the content of a swe:values element encoded as swe:TextBlock while it
+ * is parsed, chunk by chunk as given to characters(). The separators are
+ * matched literally, not as regular expressions. Every block of exactly three
+ * tokens (time, feature, value) with a valid time and value is added to the
+ * {@link ParsedObservationData} of its feature, other blocks are skipped.
+ *
+ * Only the current token is buffered, times and values are parsed from this
+ * buffer without creating any objects. The feature is only looked up if it
+ * differs from the one of the block before.
+ *
+ * @see {@link GetObservationHandler}
+ */
+class TextBlockTokenizer {
+
+	private static final int TOKENS_PER_BLOCK = 3;
+	private static final int TIME_TOKEN = 0;
+	private static final int FEATURE_TOKEN = 1;
+	private static final int VALUE_TOKEN = 2;
+
+	/**
+	 * decimal powers exactly representable as double
+	 */
+	private static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5,
+			1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * maximum count of significant digits kept while parsing a value
+	 */
+	private static final int MAX_DIGITS = 18;
+
+	/**
+	 * Provides the ParsedObservationData of the features.
+	 */
+	interface Target {
+
+		/**
+		 * @param feature
+		 *            identifier of the feature
+		 * @return the ParsedObservationData to add the values of the feature
+		 *         to
+		 */
+		ParsedObservationData get(String feature);
+	}
+
+	private char[] tokenSeparator;
+	private char[] blockSeparator;
+	private char decimalSeparator;
+
+	private Target target;
+
+	/**
+	 * feature of the current block and its data
+	 */
+	private char[] feature = new char[16];
+	private int featureLength = -1;
+	private ParsedObservationData data;
+
+	private char[] token = new char[64];
+	private int length;
+
+	/**
+	 * index of the current token in its block
+	 */
+	private int index;
+
+	private long time;
+	private float value;
+	private boolean valid = true;
+
+	/**
+	 * Instantiate a new TextBlockTokenizer.
+	 *
+	 * @param tokenSeparator
+	 *            separator of the tokens of a block, "," if null
+	 * @param blockSeparator
+	 *            separator of the blocks, " " if null
+	 * @param decimalSeparator
+	 *            decimal separator of the values, "." if null
+	 * @param target
+	 *            to add the parsed times and values to
+	 */
+	TextBlockTokenizer(String tokenSeparator, String blockSeparator,
+			String decimalSeparator, Target target) {
+		this.tokenSeparator = separator(tokenSeparator, ",");
+		this.blockSeparator = separator(blockSeparator, " ");
+		this.decimalSeparator = separator(decimalSeparator, ".")[0];
+		this.target = target;
+	}
+
+	/**
+	 * Read the next chunk of characters.
+	 */
+	void append(char[] ch, int start, int count) {
+		for (int i = start; i < start + count; i++) {
+			if (length == token.length) {
+				char[] grown = new char[token.length * 2];
+				System.arraycopy(token, 0, grown, 0, length);
+				token = grown;
+			}
+			token[length++] = ch[i];
+			if (endsWith(blockSeparator)) {
+				length -= blockSeparator.length;
+				endToken();
+				endBlock();
+			} else if (endsWith(tokenSeparator)) {
+				length -= tokenSeparator.length;
+				endToken();
+			}
+		}
+	}
+
+	/**
+	 * Read the last block, which is not terminated by a separator.
+	 */
+	void finish() {
+		endToken();
+		endBlock();
+	}
+
+	private boolean endsWith(char[] separator) {
+		int offset = length - separator.length;
+		if (offset < 0) {
+			return false;
+		}
+		for (int i = 0; i < separator.length; i++) {
+			if (token[offset + i] != separator[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void endToken() {
+		int start = 0;
+		int end = length;
+		while (start < end && Character.isWhitespace(token[start])) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(token[end - 1])) {
+			end--;
+		}
+		if (index == TIME_TOKEN) {
+			time = TimeCodec.parseISO8601(token, start, end);
+			valid &= time != TimeCodec.INVALID;
+		} else if (index == FEATURE_TOKEN) {
+			setFeature(start, end);
+		} else if (index == VALUE_TOKEN) {
+			valid &= parseValue(start, end);
+		}
+		/*
+		 * an empty first token is only whitespace between two blocks
+		 */
+		if (index > 0 || start < end) {
+			index++;
+		}
+		length = 0;
+	}
+
+	private void endBlock() {
+		if (index == TOKENS_PER_BLOCK && valid) {
+			data.add(time, value);
+		}
+		index = 0;
+		valid = true;
+	}
+
+	/**
+	 * Look up the data of the feature in the token unless it is the same as
+	 * before.
+	 */
+	private void setFeature(int start, int end) {
+		int count = end - start;
+		if (count == featureLength) {
+			int i = 0;
+			while (i < count && feature[i] == token[start + i]) {
+				i++;
+			}
+			if (i == count) {
+				return;
+			}
+		}
+		if (feature.length < count) {
+			feature = new char[count];
+		}
+		System.arraycopy(token, start, feature, 0, count);
+		featureLength = count;
+		data = target.get(new String(token, start, count));
+	}
+
+	/**
+	 * Parse a decimal number with optional sign and exponent, or NaN.
+	 *
+	 * @return false if it is no number
+	 */
+	private boolean parseValue(int start, int end) {
+		if (end - start == 3 && token[start] == 'N' && token[start + 1] == 'a'
+				&& token[start + 2] == 'N') {
+			value = Float.NaN;
+			return true;
+		}
+		int i = start;
+		boolean negative = false;
+		if (i < end && (token[i] == '-' || token[i] == '+')) {
+			negative = token[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		boolean any = false;
+		for (; i < end; i++) {
+			char c = token[i];
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (digits < MAX_DIGITS) {
+					if (mantissa != 0 || c != '0') {
+						digits++;
+					}
+					mantissa = mantissa * 10 + (c - '0');
+					if (fraction) {
+						exponent--;
+					}
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (c == decimalSeparator && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (!any) {
+			return false;
+		}
+		if (i < end && (token[i] == 'e' || token[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (token[i] == '-' || token[i] == '+')) {
+				negativeExponent = token[i] == '-';
+				i++;
+			}
+			if (i == end) {
+				return false;
+			}
+			int e = 0;
+			for (; i < end; i++) {
+				char c = token[i];
+				if (c < '0' || c > '9') {
+					return false;
+				}
+				if (e < 1000) {
+					e = e * 10 + (c - '0');
+				}
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != end) {
+			return false;
+		}
+		double v = mantissa;
+		if (mantissa != 0) {
+			if (exponent < 0) {
+				v = -exponent < POWERS.length ? v / POWERS[-exponent] : v
+						* Math.pow(10, exponent);
+			} else if (exponent > 0) {
+				v = exponent < POWERS.length ? v * POWERS[exponent] : v
+						* Math.pow(10, exponent);
+			}
+		}
+		value = (float) (negative ? -v : v);
+		return true;
+	}
+
+	private static char[] separator(String separator, String fallback) {
+		if (separator == null || separator.length() == 0) {
+			separator = fallback;
+		}
+		return separator.toCharArray();
+	}
+}
@@ -0,0 +1,672 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import mmenning.mobilegis.database.TileArchive;
+import mmenning.mobilegis.util.HttpConnector;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Downloads all parts of a region for offline use into the shared
+ * {@link TileArchive}, where the {@link WMSLoader}s will find them. A region
+ * is a BoundingBox and a range of zoom levels, its parts are enumerated in the
+ * {@link TileGrid}, so only WMS with an SRS supported by the TileGrid can be
+ * downloaded.
+ *
+ * The parts are loaded by the shared {@link TileFetchExecutor} like the parts
+ * of the WMSLoaders, but at most one at a time and not more often than every
+ * WMSUtils.OFFLINERequestInterval milliseconds. Until then no task is handed
+ * out and the executor is woken up again by a Handler, so no worker waits for
+ * the next request. Parts already stored are skipped.
+ *
+ * The region and the position of the download are stored in the folder
+ * 'application-packagename' on SDCard, so an interrupted download can be
+ * resumed. The Handler is notified with PROGRESS and FINISHED.
+ *
+ * @see {@link WMSUtils}
+ */
+public class AreaDownloader implements TileFetchExecutor.Client {
+
+	private static final String DT = "AreaDownloader";
+
+	/**
+	 * If parts were loaded. arg1 holds the count of finished parts, arg2 the
+	 * count of all parts of the region.
+	 */
+	public static final int PROGRESS = 0;
+	/**
+	 * If all parts of the region were loaded. arg1 holds the count of all
+	 * parts, arg2 the count of parts which failed.
+	 */
+	public static final int FINISHED = 1;
+
+	private static final String SDCARD = Environment
+			.getExternalStorageDirectory().getAbsolutePath();
+	private static final String STATE = "offline_region";
+	private static final String TEMP = ".tmp";
+
+	private static final int STATE_VERSION = 1;
+
+	private static final int IO_BUFFER_SIZE = 8192;
+
+	/**
+	 * the state will be written after this count of finished parts
+	 */
+	private static final int PARTS_PER_STATE_WRITE = 32;
+
+	/**
+	 * count of parts loaded at the same time
+	 */
+	private static final int MAX_RUNNING = 1;
+
+	/**
+	 * 360 degrees in microdegrees
+	 */
+	private static final long WORLD_E6 = 360000000L;
+
+	private static AreaDownloader sharedDownloader;
+
+	/**
+	 * Get the AreaDownloader shared by the whole application. It will read the
+	 * state of the last download on the first call.
+	 *
+	 * @param context
+	 *            Context in which the AreaDownloader will work.
+	 * @return the shared AreaDownloader
+	 */
+	public static synchronized AreaDownloader getShared(Context context) {
+		if (sharedDownloader == null) {
+			File dir = new File(SDCARD + File.separator
+					+ context.getPackageName());
+			if (!dir.exists()) {
+				dir.mkdirs();
+			}
+			sharedDownloader = new AreaDownloader(new File(dir, STATE),
+					TileArchive.getShared(context), HttpConnector
+							.getShared(context), TileFetchExecutor.getShared());
+		}
+		return sharedDownloader;
+	}
+
+	/**
+	 * Count the parts of a region.
+	 *
+	 * @param getMapBaseURLs
+	 *            {@link WMSUtils.getMapBaseURL}, WMS with an SRS not supported
+	 *            by the TileGrid are ignored
+	 * @param minLatitudeE6
+	 * @param minLongitudeE6
+	 * @param maxLatitudeE6
+	 * @param maxLongitudeE6
+	 * @param minZoom
+	 *            lowest zoom level
+	 * @param maxZoom
+	 *            highest zoom level
+	 * @return count of parts
+	 */
+	public static long countParts(List<String> getMapBaseURLs,
+			int minLatitudeE6, int minLongitudeE6, int maxLatitudeE6,
+			int maxLongitudeE6, int minZoom, int maxZoom) {
+		return new Region(getMapBaseURLs, minLatitudeE6, minLongitudeE6,
+				maxLatitudeE6, maxLongitudeE6, minZoom, maxZoom).total;
+	}
+
+	private File stateFile;
+
+	private TileArchive store;
+
+	private HttpConnector http;
+
+	private TileFetchExecutor executor;
+
+	private Handler handler;
+
+	private Region region;
+
+	/**
+	 * index of the next part to be loaded
+	 */
+	private long next;
+
+	/**
+	 * indices of the currently loaded parts
+	 */
+	private TreeSet<Long> running;
+
+	private int failed;
+
+	private int changes;
+
+	private boolean active;
+
+	/**
+	 * uptime of the last request in milliseconds
+	 */
+	private long lastRequest;
+
+	/**
+	 * wakes up the executor when the next request may be sent
+	 */
+	private Handler throttle;
+
+	private Runnable wakeUp = new Runnable() {
+		public void run() {
+			executor.wakeUp();
+		}
+	};
+
+	/**
+	 * Instantiate a new AreaDownloader and read the state of the last
+	 * download.
+	 *
+	 * @param stateFile
+	 *            file to store the region and the position of the download in
+	 * @param store
+	 *            TileArchive to store the parts in
+	 * @param http
+	 *            HttpConnector to open the connections with
+	 * @param executor
+	 *            TileFetchExecutor to execute the loading tasks
+	 */
+	public AreaDownloader(File stateFile, TileArchive store,
+			HttpConnector http, TileFetchExecutor executor) {
+		this.stateFile = stateFile;
+		this.store = store;
+		this.http = http;
+		this.executor = executor;
+		this.running = new TreeSet<Long>();
+		this.throttle = new Handler(Looper.getMainLooper());
+		readState();
+	}
+
+	/**
+	 * Estimate the bytes needed to store a count of parts, from the average
+	 * size of the parts stored so far. Does not wait for the store, so it may
+	 * be called from the UI Thread.
+	 *
+	 * @param parts
+	 *            count of parts
+	 * @return estimated bytes
+	 */
+	public long estimateBytes(long parts) {
+		long size = store.getSize();
+		int count = store.getCount();
+		long average = count <= 0 || size < 0 ? WMSUtils.OFFLINEPartBytes
+				: size / count;
+		return parts * average;
+	}
+
+	/**
+	 * Start to download a region, the download of the previous one is given
+	 * up.
+	 *
+	 * @param getMapBaseURLs
+	 *            {@link WMSUtils.getMapBaseURL}, WMS with an SRS not supported
+	 *            by the TileGrid are ignored
+	 * @param minLatitudeE6
+	 * @param minLongitudeE6
+	 * @param maxLatitudeE6
+	 * @param maxLongitudeE6
+	 * @param minZoom
+	 *            lowest zoom level
+	 * @param maxZoom
+	 *            highest zoom level
+	 * @return false if the region has no parts or more than
+	 *         WMSUtils.OFFLINEMaxParts
+	 */
+	public boolean start(List<String> getMapBaseURLs, int minLatitudeE6,
+			int minLongitudeE6, int maxLatitudeE6, int maxLongitudeE6,
+			int minZoom, int maxZoom) {
+		Region r = new Region(getMapBaseURLs, minLatitudeE6, minLongitudeE6,
+				maxLatitudeE6, maxLongitudeE6, minZoom, maxZoom);
+		if (r.total == 0 || r.total > WMSUtils.OFFLINEMaxParts) {
+			return false;
+		}
+		synchronized (this) {
+			region = r;
+			next = 0;
+			running.clear();
+			failed = 0;
+			active = true;
+			writeState();
+		}
+		executor.register(this);
+		return true;
+	}
+
+	/**
+	 * Resume the download of the last region. If it was finished with failed
+	 * parts, it will be started again and the stored parts are skipped.
+	 *
+	 * @return false if there is nothing to resume
+	 */
+	public boolean resume() {
+		synchronized (this) {
+			if (!isUnfinished()) {
+				return false;
+			}
+			if (next >= region.total) {
+				next = 0;
+				failed = 0;
+			}
+			active = true;
+		}
+		executor.register(this);
+		return true;
+	}
+
+	/**
+	 * Stop the download, it may be resumed later. Already running requests
+	 * will be finished.
+	 */
+	public void stop() {
+		synchronized (this) {
+			active = false;
+			writeState();
+		}
+		executor.unregister(this);
+	}
+
+	/**
+	 * @return true if parts are currently downloaded
+	 */
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return true if the last region was not downloaded completely
+	 */
+	public synchronized boolean isUnfinished() {
+		return region != null && region.total > 0
+				&& (next < region.total || failed > 0);
+	}
+
+	/**
+	 * @return count of finished parts of the last region
+	 */
+	public synchronized long getProgress() {
+		return next - running.size();
+	}
+
+	/**
+	 * @return count of all parts of the last region, 0 if there is none
+	 */
+	public synchronized long getTotal() {
+		return region == null ? 0 : region.total;
+	}
+
+	/**
+	 * Set the Handler to be notified with PROGRESS and FINISHED.
+	 *
+	 * @param handler
+	 *            may be null
+	 */
+	public synchronized void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	public synchronized String getHost() {
+		if (region == null || next >= region.total) {
+			return "";
+		}
+		return region.hosts[region.layer(next)];
+	}
+
+	public synchronized Runnable nextTask() {
+		if (!active || region == null || next >= region.total
+				|| running.size() >= MAX_RUNNING) {
+			return null;
+		}
+		long wait = lastRequest + WMSUtils.OFFLINERequestInterval
+				- SystemClock.uptimeMillis();
+		if (wait > 0) {
+			throttle.removeCallbacks(wakeUp);
+			throttle.postDelayed(wakeUp, wait);
+			return null;
+		}
+		long index = next++;
+		running.add(Long.valueOf(index));
+		return new DownloadTask(region, index);
+	}
+
+	/**
+	 * Called by the DownloadTasks if they are finished. Tasks of a region
+	 * given up are ignored.
+	 */
+	private synchronized void finished(Region r, long index, boolean success) {
+		if (r != region) {
+			return;
+		}
+		running.remove(Long.valueOf(index));
+		if (!success) {
+			failed++;
+		}
+		if (++changes >= PARTS_PER_STATE_WRITE) {
+			writeState();
+		}
+		if (handler != null && !handler.hasMessages(PROGRESS)) {
+			handler.sendMessage(handler.obtainMessage(PROGRESS,
+					(int) getProgress(), (int) region.total));
+		}
+		if (next >= region.total && running.isEmpty() && active) {
+			active = false;
+			writeState();
+			if (handler != null) {
+				handler.sendMessage(handler.obtainMessage(FINISHED,
+						(int) region.total, failed));
+			}
+		}
+	}
+
+	/**
+	 * Called by the DownloadTasks before they send a request.
+	 */
+	private synchronized void requestSent() {
+		lastRequest = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Read the state file, ignoring it if it is invalid.
+	 */
+	private void readState() {
+		if (!stateFile.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(stateFile), IO_BUFFER_SIZE));
+			try {
+				if (in.readInt() != STATE_VERSION) {
+					return;
+				}
+				int count = in.readInt();
+				ArrayList<String> urls = new ArrayList<String>(count);
+				for (int i = 0; i < count; i++) {
+					urls.add(in.readUTF());
+				}
+				Region r = new Region(urls, in.readInt(), in.readInt(), in
+						.readInt(), in.readInt(), in.readInt(), in.readInt());
+				long position = in.readLong();
+				int failures = in.readInt();
+				region = r;
+				next = Math.min(position, r.total);
+				failed = failures;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			region = null;
+		}
+	}
+
+	/**
+	 * Write the state file. The position is the first part not finished yet.
+	 * The parts in the batch of the store are written before, so the position
+	 * is never ahead of the stored parts. If they can not be written, the state
+	 * file is left as it is.
+	 */
+	private void writeState() {
+		if (region == null || !store.flush()) {
+			return;
+		}
+		long position = running.isEmpty() ? next : running.first()
+				.longValue();
+		File temp = new File(stateFile.getPath() + TEMP);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp),
+							IO_BUFFER_SIZE));
+			try {
+				out.writeInt(STATE_VERSION);
+				out.writeInt(region.urls.length);
+				for (String url : region.urls) {
+					out.writeUTF(url);
+				}
+				out.writeInt(region.minLatitudeE6);
+				out.writeInt(region.minLongitudeE6);
+				out.writeInt(region.maxLatitudeE6);
+				out.writeInt(region.maxLongitudeE6);
+				out.writeInt(region.minZoom);
+				out.writeInt(region.maxZoom);
+				out.writeLong(position);
+				out.writeInt(failed);
+			} finally {
+				out.close();
+			}
+			stateFile.delete();
+			if (temp.renameTo(stateFile)) {
+				changes = 0;
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Inner Class to load a single part of the region into the store.
+	 */
+	private class DownloadTask implements Runnable {
+
+		private Region region;
+
+		private long index;
+
+		private String layer;
+
+		private int zoom;
+
+		private int column;
+
+		private int row;
+
+		private String url;
+
+		private DownloadTask(Region region, long index) {
+			this.region = region;
+			this.index = index;
+			int l = region.layer(index);
+			long tile = index / region.urls.length;
+			int level = 0;
+			long parts = (long) region.columns[0] * region.rows[0];
+			while (tile >= parts) {
+				tile -= parts;
+				level++;
+				parts = (long) region.columns[level] * region.rows[level];
+			}
+			this.layer = region.urls[l];
+			this.zoom = region.minZoom + level;
+			this.column = (region.firstColumn[level]
+					+ (int) (tile % region.columns[level]))
+					% TileGrid.size(zoom);
+			this.row = region.firstRow[level]
+					+ (int) (tile / region.columns[level]);
+			/*
+			 * the same url as the WMSLoader requests for this part
+			 */
+			this.url = WMSUtils.generateGetMapURL(layer, region.srs[l], zoom,
+					TileGrid.identX(zoom, column), TileGrid.identY(zoom, row));
+		}
+
+		public void run() {
+			boolean success = true;
+			try {
+				if (!store.contains(layer, TileGrid.gridZoom(zoom), column,
+						row)) {
+					requestSent();
+					byte[] data = download();
+					if (isImage(data)) {
+						success = store.put(layer, TileGrid.gridZoom(zoom),
+								column, row, data);
+					} else {
+						Log.w(DT, "No image: " + url);
+						success = false;
+					}
+				}
+			} catch (IOException e) {
+				Log.w(DT, "IO Exception while loading: " + url);
+				success = false;
+			} finally {
+				finished(region, index, success);
+			}
+		}
+
+		/**
+		 * Read the whole response of the GetMap request.
+		 */
+		private byte[] download() throws IOException {
+			HttpConnector.Response c = http.get(url, false);
+			try {
+				return c.readFully();
+			} finally {
+				c.close();
+			}
+		}
+
+		/**
+		 * Estimate whether the response is an image and not a service
+		 * exception, without decoding its pixels.
+		 */
+		private boolean isImage(byte[] data) {
+			BitmapFactory.Options bounds = new BitmapFactory.Options();
+			bounds.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+			return bounds.outWidth > 0 && bounds.outHeight > 0;
+		}
+	}
+
+	/**
+	 * A BoundingBox and a range of zoom levels for some WMS. Its parts are
+	 * numbered by zoom level, row, column and WMS, in this order.
+	 * 
+	 * The BoundingBox reaches eastwards from minLongitudeE6 to
+	 * maxLongitudeE6, which may lie beyond -180 and 180 degrees. If it
+	 * crosses the antimeridian, its columns continue at column 0.
+	 */
+	private static class Region {
+
+		private String[] urls;
+		private String[] srs;
+		private String[] hosts;
+
+		private int minLatitudeE6;
+		private int minLongitudeE6;
+		private int maxLatitudeE6;
+		private int maxLongitudeE6;
+		private int minZoom;
+		private int maxZoom;
+
+		/*
+		 * parts of the BoundingBox in the TileGrid, by zoom level
+		 */
+		private int[] firstColumn;
+		private int[] firstRow;
+		private int[] columns;
+		private int[] rows;
+
+		private long total;
+
+		private Region(List<String> getMapBaseURLs, int minLatitudeE6,
+				int minLongitudeE6, int maxLatitudeE6, int maxLongitudeE6,
+				int minZoom, int maxZoom) {
+			ArrayList<String> supported = new ArrayList<String>();
+			for (String url : getMapBaseURLs) {
+				if (TileGrid.supports(WMSUtils.getSRS(url))) {
+					supported.add(url);
+				}
+			}
+			this.urls = supported.toArray(new String[supported.size()]);
+			this.srs = new String[urls.length];
+			this.hosts = new String[urls.length];
+			for (int i = 0; i < urls.length; i++) {
+				srs[i] = WMSUtils.getSRS(urls[i]);
+				try {
+					hosts[i] = new URL(urls[i]).getHost();
+				} catch (MalformedURLException e) {
+					hosts[i] = "";
+				}
+			}
+			this.minLatitudeE6 = minLatitudeE6;
+			/*
+			 * start in [-180, 180) and span at most the whole world
+			 */
+			long width = Math.max(0, Math.min(WORLD_E6, (long) maxLongitudeE6
+					- minLongitudeE6));
+			long west = ((long) minLongitudeE6 + WORLD_E6 / 2) % WORLD_E6;
+			if (west < 0) {
+				west += WORLD_E6;
+			}
+			minLongitudeE6 = (int) (west - WORLD_E6 / 2);
+			maxLongitudeE6 = (int) (minLongitudeE6 + width);
+			this.minLongitudeE6 = minLongitudeE6;
+			this.maxLatitudeE6 = maxLatitudeE6;
+			this.maxLongitudeE6 = maxLongitudeE6;
+			this.minZoom = Math.max(1, minZoom);
+			this.maxZoom = maxZoom;
+
+			int levels = Math.max(0, this.maxZoom - this.minZoom + 1);
+			firstColumn = new int[levels];
+			firstRow = new int[levels];
+			columns = new int[levels];
+			rows = new int[levels];
+			for (int i = 0; i < levels; i++) {
+				int zoom = this.minZoom + i;
+				if (!TileGrid.supports(zoom)) {
+					continue;
+				}
+				int size = TileGrid.size(zoom);
+				int lastColumn = maxLongitudeE6 <= WORLD_E6 / 2 ? TileGrid
+						.columnOf(zoom, maxLongitudeE6) : TileGrid.columnOf(
+						zoom, (int) (maxLongitudeE6 - WORLD_E6)) + size;
+				firstColumn[i] = TileGrid.columnOf(zoom, minLongitudeE6);
+				firstRow[i] = TileGrid.rowOf(zoom, maxLatitudeE6);
+				columns[i] = Math.min(size, lastColumn - firstColumn[i] + 1);
+				rows[i] = TileGrid.rowOf(zoom, minLatitudeE6) - firstRow[i]
+						+ 1;
+				total += (long) columns[i] * rows[i] * urls.length;
+			}
+		}
+
+		/**
+		 * Index of the WMS of a part.
+		 */
+		private int layer(long index) {
+			return (int) (index % urls.length);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Takes the Bitmaps no longer used by the TileCache and either keeps them for
+ * reuse, bucketed by size and Config, or recycles them, which frees their
+ * pixel memory at once instead of waiting for the garbage collector.
+ *
+ * A released Bitmap may still be drawn in the current frame, so it is only
+ * handed out or recycled after the next call of onFrame(), which has to be
+ * done by the drawing Thread before it draws.
+ *
+ * Decoding can not reuse Bitmaps before Android 3.0, so the pool only serves
+ * Bitmaps drawn by the application itself (obtain()). Decoding reuses a temp
+ * storage per Thread instead.
+ */
+public class BitmapPool {
+
+	private static final String DT = "BitmapPool";
+
+	/**
+	 * maximum count of kept Bitmaps per size and Config
+	 */
+	private static final int MAXPerBucket = 8;
+
+	/**
+	 * size of the temp storage used for decoding
+	 */
+	private static final int DECODEStorage = 16 * 1024;
+
+	private static BitmapPool sharedPool;
+
+	/**
+	 * @return the BitmapPool shared by the whole WMS package
+	 */
+	public static synchronized BitmapPool getShared() {
+		if (sharedPool == null) {
+			sharedPool = new BitmapPool();
+		}
+		return sharedPool;
+	}
+
+	private HashMap<Long, ArrayList<Bitmap>> buckets;
+
+	/**
+	 * released since the last frame
+	 */
+	private ArrayList<Bitmap> released;
+
+	private ThreadLocal<BitmapFactory.Options[]> decodeOptions;
+
+	/**
+	 * Instantiate a new BitmapPool.
+	 */
+	public BitmapPool() {
+		this.buckets = new HashMap<Long, ArrayList<Bitmap>>();
+		this.released = new ArrayList<Bitmap>();
+		this.decodeOptions = new ThreadLocal<BitmapFactory.Options[]>() {
+			@Override
+			protected BitmapFactory.Options[] initialValue() {
+				byte[] storage = new byte[DECODEStorage];
+				BitmapFactory.Options[] ret = new BitmapFactory.Options[2];
+				for (int i = 0; i < ret.length; i++) {
+					ret[i] = new BitmapFactory.Options();
+					ret[i].inTempStorage = storage;
+				}
+				ret[0].inPreferredConfig = Bitmap.Config.ARGB_8888;
+				ret[1].inPreferredConfig = Bitmap.Config.RGB_565;
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * Hand a Bitmap over which is no longer referenced by any cache. It must
+	 * not be used any more by the caller.
+	 *
+	 * @param bitmap
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (bitmap != null) {
+			released.add(bitmap);
+		}
+	}
+
+	/**
+	 * Get a mutable, transparent Bitmap, reused if one of this size and Config
+	 * is available.
+	 *
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return a cleared Bitmap
+	 */
+	public Bitmap obtain(int width, int height, Bitmap.Config config) {
+		Bitmap ret = null;
+		synchronized (this) {
+			ArrayList<Bitmap> bucket = buckets.get(bucket(width, height,
+					config));
+			if (bucket != null && !bucket.isEmpty()) {
+				ret = bucket.remove(bucket.size() - 1);
+			}
+		}
+		if (ret == null) {
+			return Bitmap.createBitmap(width, height, config);
+		}
+		ret.eraseColor(0);
+		return ret;
+	}
+
+	/**
+	 * Must be called by the drawing Thread before every frame. Bitmaps
+	 * released before will be kept for reuse or recycled.
+	 */
+	public synchronized void onFrame() {
+		for (int i = released.size() - 1; i >= 0; i--) {
+			Bitmap b = released.get(i);
+			if (b.isRecycled()) {
+				continue;
+			}
+			if (b.isMutable() && b.getConfig() != null) {
+				Long key = bucket(b.getWidth(), b.getHeight(), b.getConfig());
+				ArrayList<Bitmap> bucket = buckets.get(key);
+				if (bucket == null) {
+					bucket = new ArrayList<Bitmap>(MAXPerBucket);
+					buckets.put(key, bucket);
+				}
+				if (bucket.size() < MAXPerBucket) {
+					bucket.add(b);
+					continue;
+				}
+			}
+			b.recycle();
+		}
+		released.clear();
+	}
+
+	/**
+	 * Recycle all kept Bitmaps, if memory runs out. Bitmaps released since
+	 * the last frame may still be drawn and are left to onFrame().
+	 */
+	public synchronized void trim() {
+		for (ArrayList<Bitmap> bucket : buckets.values()) {
+			for (int i = 0; i < bucket.size(); i++) {
+				bucket.get(i).recycle();
+			}
+			bucket.clear();
+		}
+	}
+
+	/**
+	 * Options to decode a part, reusing the temp storage of the calling
+	 * Thread. The Options must not be changed.
+	 *
+	 * @param opaque
+	 *            true to decode in RGB_565 which needs half of the memory
+	 *            but drops the alpha channel
+	 * @return Options for BitmapFactory
+	 */
+	public BitmapFactory.Options decodeOptions(boolean opaque) {
+		return decodeOptions.get()[opaque ? 1 : 0];
+	}
+
+	private static Long bucket(int width, int height, Bitmap.Config config) {
+		return Long.valueOf(((long) width << 32) | ((long) height << 8)
+				| config.ordinal());
+	}
+}
@@ -15,6 +15,9 @@
  */
 package mmenning.mobilegis.map.wms;
 
+import java.util.HashMap;
+import java.util.HashSet;
+
 import mmenning.mobilegis.map.wms.ParsedWMSDataSet.ParsedLayer;
 
 import org.xml.sax.Attributes;
@@ -28,12 +31,36 @@ import org.xml.sax.helpers.DefaultHandler;
  * 
  * Based upon OGC 01-068r3 but not yet full!
  * 
+ * If a LayerListener is given, the Layers are not collected in the
+ * ParsedWMSDataSet but handed over to the listener as soon as their own data
+ * is parsed. Only the Layers on the path to the current one are held then, so
+ * the memory does not grow with the count of Layers. Every SRS code is held
+ * only once, however many Layers list it.
+ * 
  * @author Mathias Menninghaus
  * @version 15.10.2009
  * 
  */
 public class GetCapabilitiesHandler extends DefaultHandler {
 
+	/**
+	 * Receives the Layers while they are parsed.
+	 */
+	public interface LayerListener {
+
+		/**
+		 * Called once for every Layer, after its own data and before its
+		 * containing Layers. The root of the Layer has been handed over
+		 * before. The SRS of the root are not added to the Layer.
+		 * 
+		 * @param data
+		 *            the data of the service parsed so far
+		 * @param layer
+		 *            the parsed Layer
+		 */
+		public void onLayer(ParsedWMSDataSet data, ParsedLayer layer);
+	}
+
 	public static final String PNGFORMAT = "image/png";
 
 	public static final String DT = "WMSGetCapabilitiesHandler";
@@ -112,7 +139,40 @@ public class GetCapabilitiesHandler extends DefaultHandler {
 	private ParsedLayer actLayer = null;
 
 	private StringBuffer charBuffer;
-	
+
+	private LayerListener listener;
+
+	/**
+	 * Layers handed over to the listener, only the path to actLayer
+	 */
+	private HashSet<ParsedLayer> handedOver;
+
+	/**
+	 * every parsed SRS code by itself, so equal codes are the same String
+	 */
+	private HashMap<String, String> srsCodes = new HashMap<String, String>();
+
+	/**
+	 * Instantiate a new GetCapabilitiesHandler which collects all Layers in
+	 * the ParsedWMSDataSet.
+	 */
+	public GetCapabilitiesHandler() {
+		this(null);
+	}
+
+	/**
+	 * Instantiate a new GetCapabilitiesHandler which hands the Layers over to
+	 * a LayerListener while they are parsed.
+	 * 
+	 * @param listener
+	 *            receives the Layers, null to collect them in the
+	 *            ParsedWMSDataSet
+	 */
+	public GetCapabilitiesHandler(LayerListener listener) {
+		this.listener = listener;
+		this.handedOver = new HashSet<ParsedLayer>();
+	}
+
 	/**
 	 * Returns the parsedData
 	 * 
@@ -213,10 +273,14 @@ public class GetCapabilitiesHandler extends DefaultHandler {
 					} else if (in_SRS && localName.equals(SRS)) {
 						String[] strings = charBuffer.toString().split(" ");
 						for (String s : strings) {
-							actLayer.parsedSRS.add(s.toUpperCase());
+							if (s.length() > 0) {
+								actLayer.parsedSRS.add(srsCode(s));
+							}
 						}
 						in_SRS = false;
 					} else if (localName.equals(Layer)) {
+						handOver(actLayer);
+						handedOver.remove(actLayer);
 						if (actLayer.rootLayer == null) {
 							in_Layer = false;
 						}
@@ -254,11 +318,38 @@ public class GetCapabilitiesHandler extends DefaultHandler {
 		if (actLayer == null) {
 			actLayer = parsedData.new ParsedLayer();
 		} else {
-			ParsedLayer newLayer = parsedData.new ParsedLayer(actLayer);
+			/*
+			 * the data of the root is complete, its containing layers follow
+			 */
+			handOver(actLayer);
+			ParsedLayer newLayer = parsedData.new ParsedLayer(actLayer,
+					listener == null);
 			actLayer = newLayer;
 		}
 	}
 
+	/**
+	 * Hand a Layer over to the listener if not done yet.
+	 */
+	private void handOver(ParsedLayer layer) {
+		if (listener != null && handedOver.add(layer)) {
+			listener.onLayer(parsedData, layer);
+		}
+	}
+
+	/**
+	 * The upper case SRS code, the same String for equal codes.
+	 */
+	private String srsCode(String s) {
+		String code = s.toUpperCase();
+		String known = srsCodes.get(code);
+		if (known == null) {
+			srsCodes.put(code, code);
+			known = code;
+		}
+		return known;
+	}
+
 	@Override
 	public void startElement(String uri, String localName, String qName,
 			Attributes attributes) throws SAXException {
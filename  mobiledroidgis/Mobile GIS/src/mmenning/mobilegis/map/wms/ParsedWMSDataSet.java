@@ -75,12 +75,28 @@ public class ParsedWMSDataSet {
 		 *             layer.
 		 */
 		public ParsedLayer(ParsedLayer root) {
+			this(root, true);
+		}
+
+		/**
+		 * Sets the given ParsedLayer as root layer for the new constructed.
+		 * 
+		 * @param attach
+		 *            true to add the new one to the given root, false if the
+		 *            root shall not hold its containing layers
+		 * @throws IllegalStateException
+		 *             if the corresponding ParsedWMSDataSet has not a root
+		 *             layer.
+		 */
+		public ParsedLayer(ParsedLayer root, boolean attach) {
 			if (ParsedWMSDataSet.this.rootLayer == null) {
 				throw new RuntimeException(
 						"no root parsedLayer defined in corresponding ParsedWMSDataSet");
 			}
 			this.rootLayer = root;
-			root.parsedLayers.add(this);
+			if (attach) {
+				root.parsedLayers.add(this);
+			}
 		}
 
 		public HashSet<String> parsedSRS = new HashSet<String>();
@@ -16,14 +16,23 @@
 package mmenning.mobilegis.map.wms;
 
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Provides data storage of Values in two Queues. One for Data Storage that
  * should be requested by Threads to do something with it. The other one to
  * estimate whether a Thread already does something with data.
  * 
+ * Every Value has a position in a grid of parts. If a viewport is set, the
+ * Value nearest to its center will be requested first and Values outside of
+ * it will be dropped from the data Queue. Without a viewport, the most
+ * recently inserted Value will be requested first.
+ * 
+ * Values may be inserted as prefetches. They will only be requested if there
+ * are no other Values left, in the order they were inserted, and are not
+ * affected by the viewport.
+ * 
  * @author Mathias Menninghaus
  * 
  * @param <K>
@@ -33,19 +42,35 @@ import java.util.LinkedList;
  */
 public class PriorityLoadingManager<K, V> {
 
-	private HashMap<K, V> parts;
-	private LinkedList<K> partPriority;
-	private HashSet<K> currentlyLoading;
+	private HashMap<K, Entry<K, V>> parts;
+	private HashMap<K, Entry<K, V>> currentlyLoading;
 
 	private static final String DT = "PriorityLoadingManager";
 
+	/**
+	 * increased on every insert or update to order equally distant entries
+	 */
+	private long sequence;
+
+	private boolean hasViewport;
+	private int viewZoom;
+	private int viewX;
+	private int viewY;
+	private int marginX;
+	private int marginY;
+
+	/**
+	 * false if an entry was inserted since the data Queue was last cleared of
+	 * entries outside of the viewport
+	 */
+	private boolean pruned;
+
 	/**
 	 * Instantiate a PriorityLoadingManager
 	 */
 	public PriorityLoadingManager() {
-		this.parts = new HashMap<K, V>();
-		this.partPriority = new LinkedList<K>();
-		this.currentlyLoading = new HashSet<K>();
+		this.parts = new HashMap<K, Entry<K, V>>();
+		this.currentlyLoading = new HashMap<K, Entry<K, V>>();
 	}
 
 	/**
@@ -53,24 +78,41 @@ public class PriorityLoadingManager<K, V> {
 	 */
 	public synchronized void clearLoadingQueue() {
 		parts.clear();
-		partPriority.clear();
 	}
 
 	/**
-	 * Removes from the data queue and adds to the Thread-Queue
+	 * Removes from the data queue and adds to the Thread-Queue. Chooses the
+	 * entry nearest to the center of the viewport.
 	 * 
 	 * @return The moved Entry<K,V>
 	 */
 	public synchronized Entry<K, V> removeFirstAndStartLoading() {
-		if (!isEmpty()) {
-			K key = partPriority.getFirst();
-			Entry<K, V> ret = new Entry<K, V>(key, parts.get(key));
-			this.startLoading(key);
-			parts.remove(key);
-			partPriority.remove(key);
-			return ret;
+		Entry<K, V> first = null;
+		long firstDistance = Long.MAX_VALUE;
+		Entry<K, V> firstPrefetch = null;
+		for (Entry<K, V> e : parts.values()) {
+			if (e.prefetch) {
+				if (firstPrefetch == null
+						|| e.sequence < firstPrefetch.sequence) {
+					firstPrefetch = e;
+				}
+				continue;
+			}
+			long distance = distance(e);
+			if (first == null || distance < firstDistance
+					|| (distance == firstDistance && e.sequence > first.sequence)) {
+				first = e;
+				firstDistance = distance;
+			}
+		}
+		if (first == null) {
+			first = firstPrefetch;
 		}
-		return null;
+		if (first != null) {
+			parts.remove(first.key);
+			this.startLoading(first);
+		}
+		return first;
 	}
 
 	/**
@@ -79,14 +121,66 @@ public class PriorityLoadingManager<K, V> {
 	 * 
 	 * @param key
 	 * @param value
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param x
+	 *            horizontal position of the part in the grid
+	 * @param y
+	 *            vertical position of the part in the grid
 	 */
-	public synchronized void insertIntoLoadingQueue(K key, V value) {
-		if (!parts.containsKey(key)) {
-			parts.put(key, value);
-			partPriority.addFirst(key);
-		} else {
-			partPriority.remove(key);
-			partPriority.addFirst(key);
+	public synchronized void insertIntoLoadingQueue(K key, V value, int zoom,
+			int x, int y) {
+		Entry<K, V> e = parts.get(key);
+		if (e == null) {
+			e = new Entry<K, V>(key, value, zoom, x, y);
+			parts.put(key, e);
+			pruned = false;
+		}
+		e.prefetch = false;
+		e.sequence = ++sequence;
+	}
+
+	/**
+	 * Inserts Key-Value Pair as prefetch to the tail of the data Queue. If the
+	 * Queue already contains this data nothing will happen.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param x
+	 *            horizontal position of the part in the grid
+	 * @param y
+	 *            vertical position of the part in the grid
+	 */
+	public synchronized void insertPrefetch(K key, V value, int zoom, int x,
+			int y) {
+		if (!parts.containsKey(key) && !currentlyLoading.containsKey(key)) {
+			Entry<K, V> e = new Entry<K, V>(key, value, zoom, x, y);
+			e.prefetch = true;
+			e.sequence = ++sequence;
+			parts.put(key, e);
+		}
+	}
+
+	/**
+	 * Remove all prefetches from the data Queue and collect the keys of the
+	 * prefetches in the Thread Queue.
+	 * 
+	 * @param out
+	 *            List to add the keys of loading prefetches to
+	 */
+	public synchronized void clearPrefetches(List<K> out) {
+		Iterator<Entry<K, V>> it = parts.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().prefetch) {
+				it.remove();
+			}
+		}
+		for (Entry<K, V> e : currentlyLoading.values()) {
+			if (e.prefetch) {
+				out.add(e.key);
+			}
 		}
 	}
 
@@ -96,12 +190,12 @@ public class PriorityLoadingManager<K, V> {
 	 * @return true if it does, else false
 	 */
 	public synchronized boolean threadRunsOrIsInQueue(K key) {
-		if (parts.containsKey(key)) {
-			partPriority.remove(key);
-			partPriority.addFirst(key);
+		Entry<K, V> e = parts.get(key);
+		if (e != null) {
+			e.sequence = ++sequence;
 			return true;
 		}
-		return currentlyLoading.contains(key);
+		return currentlyLoading.containsKey(key);
 	}
 
 	/**
@@ -118,7 +212,7 @@ public class PriorityLoadingManager<K, V> {
 	 * @return
 	 */
 	public synchronized boolean threadRuns(K key) {
-		return currentlyLoading.contains(key);
+		return currentlyLoading.containsKey(key);
 	}
 
 	/**
@@ -129,12 +223,89 @@ public class PriorityLoadingManager<K, V> {
 		currentlyLoading.remove(key);
 	}
 
+	/**
+	 * Set the viewport. Entries of the data Queue outside of it will be
+	 * removed, except prefetches. If neither the viewport changed nor entries
+	 * were inserted since the last call, nothing is done, so calling it for
+	 * every frame does not allocate.
+	 * 
+	 * @param zoom
+	 *            zoom level currently displayed
+	 * @param centerX
+	 *            horizontal grid position of the center
+	 * @param centerY
+	 *            vertical grid position of the center
+	 * @param marginX
+	 *            maximum horizontal distance to the center
+	 * @param marginY
+	 *            maximum vertical distance to the center
+	 * @return true if the viewport changed
+	 */
+	public synchronized boolean setViewport(int zoom, int centerX,
+			int centerY, int marginX, int marginY) {
+		boolean changed = !hasViewport || zoom != viewZoom || centerX != viewX
+				|| centerY != viewY || marginX != this.marginX
+				|| marginY != this.marginY;
+		if (!changed && pruned) {
+			return false;
+		}
+		this.hasViewport = true;
+		this.viewZoom = zoom;
+		this.viewX = centerX;
+		this.viewY = centerY;
+		this.marginX = marginX;
+		this.marginY = marginY;
+
+		Iterator<Entry<K, V>> it = parts.values().iterator();
+		while (it.hasNext()) {
+			if (!inViewport(it.next())) {
+				it.remove();
+			}
+		}
+		pruned = true;
+		return changed;
+	}
+
+	/**
+	 * Collect the keys of the Thread Queue which are outside of the viewport,
+	 * except prefetches.
+	 * 
+	 * @param out
+	 *            List to add the keys to
+	 */
+	public synchronized void loadingOutsideViewport(List<K> out) {
+		for (Entry<K, V> e : currentlyLoading.values()) {
+			if (!inViewport(e)) {
+				out.add(e.key);
+			}
+		}
+	}
+
 	/**
 	 * Add Thread to the Thread Queue
-	 * @param key
+	 * @param e
+	 */
+	private void startLoading(Entry<K, V> e) {
+		currentlyLoading.put(e.key, e);
+	}
+
+	private boolean inViewport(Entry<K, V> e) {
+		return !hasViewport
+				|| e.prefetch
+				|| (e.zoom == viewZoom && Math.abs(e.x - viewX) <= marginX && Math
+						.abs(e.y - viewY) <= marginY);
+	}
+
+	/**
+	 * squared distance to the center of the viewport, 0 without viewport
 	 */
-	private void startLoading(K key) {
-		currentlyLoading.add(key);
+	private long distance(Entry<K, V> e) {
+		if (!hasViewport) {
+			return 0;
+		}
+		long dx = e.x - viewX;
+		long dy = e.y - viewY;
+		return dx * dx + dy * dy;
 	}
 
 	/**
@@ -144,14 +315,23 @@ public class PriorityLoadingManager<K, V> {
 	 * @param <K> Key Type
 	 * @param <V> Value Type
 	 */
-	public class Entry<K, V> {
+	public static class Entry<K, V> {
 
 		public K key;
 		public V value;
 
-		private Entry(K key, V value) {
+		private int zoom;
+		private int x;
+		private int y;
+		private long sequence;
+		private boolean prefetch;
+
+		private Entry(K key, V value, int zoom, int x, int y) {
 			this.key = key;
 			this.value = value;
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
 		}
 	}
 }
@@ -15,13 +15,15 @@
  */
 package mmenning.mobilegis.map.wms;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Caches Data by a Key and provides cleaning up if the count of cached data
  * exceeds a limit. By cleaning up, the data with the oldest contains or get
- * request will be removed.
+ * request will be removed. The data is held in access order, so updating,
+ * inserting and removing a single key takes constant time.
  * 
  * @author Mathias Menninghaus
  * 
@@ -32,8 +34,10 @@ import java.util.LinkedList;
  */
 public class PriorityMapQueue<K, V> {
 
-	private HashMap<K, V> values;
-	private LinkedList<K> priority;
+	/**
+	 * values in access order, eldest first
+	 */
+	private LinkedHashMap<K, V> values;
 
 	private static final String DT = "PriorityMapQueue";
 
@@ -50,8 +54,21 @@ public class PriorityMapQueue<K, V> {
 	 *            cleanUP will be called.
 	 */
 	public PriorityMapQueue(int maxSize, int maxToleratedSize) {
-		this.values = new HashMap<K, V>(maxToleratedSize);
-		this.priority = new LinkedList<K>();
+		this.values = new LinkedHashMap<K, V>(maxToleratedSize, 0.75f, true);
+		this.maxSize = maxSize;
+		this.maxToleratedSize = maxToleratedSize;
+	}
+
+	/**
+	 * Change the maximum amounts of data. The data will be cleaned up with the
+	 * next insertion.
+	 * 
+	 * @param maxSize
+	 *            maximum amount of data after cleaning up
+	 * @param maxToleratedSize
+	 *            maximum amount of data without cleaning up
+	 */
+	public synchronized void setMaxSize(int maxSize, int maxToleratedSize) {
 		this.maxSize = maxSize;
 		this.maxToleratedSize = maxToleratedSize;
 	}
@@ -60,13 +77,34 @@ public class PriorityMapQueue<K, V> {
 	 * CleanUP the data to maxSize
 	 */
 	public synchronized void cleanUP() {
-		int k = 0;
-		while (values.size() > this.maxSize) {
-			values.remove(priority.removeLast());
-			k++;
+		Iterator<Map.Entry<K, V>> eldest = values.entrySet().iterator();
+		while (values.size() > this.maxSize && eldest.hasNext()) {
+			Map.Entry<K, V> e = eldest.next();
+			eldest.remove();
+			removed(e.getKey(), e.getValue());
 		}
 	}
 
+	/**
+	 * Remove all data.
+	 */
+	public synchronized void clear() {
+		for (Map.Entry<K, V> e : values.entrySet()) {
+			removed(e.getKey(), e.getValue());
+		}
+		values.clear();
+	}
+
+	/**
+	 * Called for every value removed by cleanUP or clear. Does nothing by
+	 * default, may be overridden to free the resources of the value.
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	protected void removed(K key, V value) {
+	}
+
 	/**
 	 * Query whether the MapQueue contains the key or not
 	 * 
@@ -75,7 +113,10 @@ public class PriorityMapQueue<K, V> {
 	 */
 	public synchronized boolean containsWithUpdate(K key) {
 		if (values.containsKey(key)) {
-			updateKey(key);
+			/*
+			 * get moves the key to the tail of the access order
+			 */
+			values.get(key);
 			return true;
 		} else {
 			return false;
@@ -90,27 +131,12 @@ public class PriorityMapQueue<K, V> {
 	 * @return the value that belongs to the key
 	 */
 	public synchronized V getWithUpdate(K key) {
-
-		V value = values.get(key);
-		if (value != null) {
-			/*
-			 * update in list
-			 */
-			updateKey(key);
-
-		}
-		return value;
-
+		/*
+		 * get moves the key to the tail of the access order
+		 */
+		return values.get(key);
 	}
 
-	/**
-	 * Update the Key Value
-	 */
-	private void updateKey(K key){
-		priority.remove(key);
-		priority.addFirst(key);
-	}
-	
 	/**
 	 * Insert to the head of the Queue. If the Queue already contains this key
 	 * nothing will happen.
@@ -121,7 +147,6 @@ public class PriorityMapQueue<K, V> {
 	public synchronized void insertWithoutUpdate(K key, V value) {
 		if (!values.containsKey(key)) {
 			values.put(key, value);
-			priority.addFirst(key);
 			if (values.size() >= this.maxToleratedSize) {
 				cleanUP();
 			}
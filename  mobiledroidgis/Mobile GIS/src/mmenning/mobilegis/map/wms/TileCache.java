@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Cache for the Bitmaps of all WMSLoaders, bounded by the bytes of the cached
+ * Bitmaps instead of their count. A part is identified by the layer it belongs
+ * to (usually the getMapBaseURL of the WMSLoader) and its key in this layer.
+ *
+ * If the budget is exceeded, the cache removes parts until it fits again. The
+ * part to be removed is chosen among the least recently used ones, preferring
+ * parts far away from the current zoom level and parts of upper layers. The
+ * lowest layer is usually the base map, which is the most visible one if a
+ * part is missing. Removed Bitmaps are handed over to a {@link BitmapPool}.
+ *
+ * @see {@link WMSLoader}
+ */
+public class TileCache {
+
+	private static final String DT = "TileCache";
+
+	/**
+	 * count of least recently used parts which are compared when choosing the
+	 * next part to be removed
+	 */
+	private static final int EVICTIONWindow = 8;
+
+	/**
+	 * weight of the distance between a part's zoom level and the current one
+	 */
+	private static final int ZOOMWeight = 4;
+
+	/**
+	 * weight of the draw order of the layer a part belongs to
+	 */
+	private static final int LAYERWeight = 1;
+
+	private static TileCache sharedCache;
+
+	/**
+	 * Get the TileCache shared by all WMSLoaders. Its budget will be derived
+	 * from the maximum heap size with {@link WMSUtils#TILECACHEHeapDivisor} on
+	 * the first call.
+	 *
+	 * @return the shared TileCache
+	 */
+	public static synchronized TileCache getShared() {
+		if (sharedCache == null) {
+			sharedCache = new TileCache(Runtime.getRuntime().maxMemory()
+					/ WMSUtils.TILECACHEHeapDivisor, BitmapPool.getShared());
+		}
+		return sharedCache;
+	}
+
+	/**
+	 * parts in access order, eldest first
+	 */
+	private LinkedHashMap<Key, Part> parts;
+
+	/**
+	 * reused to look up parts without allocation
+	 */
+	private Key probe;
+
+	private BitmapPool pool;
+
+	private long budget;
+
+	private long size;
+
+	private int currentZoom;
+
+	private int hits;
+
+	private int misses;
+
+	private int evictions;
+
+	/**
+	 * Instantiate a new TileCache.
+	 *
+	 * @param budget
+	 *            maximum bytes of all cached Bitmaps
+	 * @param pool
+	 *            BitmapPool to hand removed Bitmaps over to
+	 */
+	public TileCache(long budget, BitmapPool pool) {
+		this.parts = new LinkedHashMap<Key, Part>(64, 0.75f, true);
+		this.probe = new Key(null, 0);
+		this.budget = budget;
+		this.pool = pool;
+	}
+
+	/**
+	 * Get a cached part and mark it as recently used.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param key
+	 *            identifier of the part in this layer
+	 * @return the cached Bitmap or null if there is no such part
+	 */
+	public synchronized Bitmap get(String layer, long key) {
+		probe.layer = layer;
+		probe.key = key;
+		Part part = parts.get(probe);
+		probe.layer = null;
+		if (part == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return part.bitmap;
+	}
+
+	/**
+	 * Get a cached part and mark it as recently used, without counting a hit
+	 * or miss. Used to look up parts which are only drawn in place of a
+	 * missing one.
+	 * 
+	 * @param layer
+	 *            identifier of the layer
+	 * @param key
+	 *            identifier of the part in this layer
+	 * @return the cached Bitmap or null if there is no such part
+	 */
+	public synchronized Bitmap peek(String layer, long key) {
+		probe.layer = layer;
+		probe.key = key;
+		Part part = parts.get(probe);
+		probe.layer = null;
+		return part == null ? null : part.bitmap;
+	}
+
+	/**
+	 * Estimate whether a part is cached, without marking it as recently used
+	 * or counting a hit or miss.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param key
+	 *            identifier of the part in this layer
+	 * @return true if the part is cached
+	 */
+	public synchronized boolean contains(String layer, long key) {
+		probe.layer = layer;
+		probe.key = key;
+		boolean ret = parts.containsKey(probe);
+		probe.layer = null;
+		return ret;
+	}
+
+	/**
+	 * Insert a part. If there is already a part for this key the given Bitmap
+	 * will be handed over to the BitmapPool. May remove other parts to stay in
+	 * budget.
+	 *
+	 * @param layer
+	 *            identifier of the layer
+	 * @param key
+	 *            identifier of the part in this layer
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param drawOrder
+	 *            position of the layer in draw order, 0 for the lowest
+	 * @param bitmap
+	 *            the part
+	 */
+	public synchronized void put(String layer, long key, int zoom,
+			int drawOrder, Bitmap bitmap) {
+		Key k = new Key(layer, key);
+		if (parts.containsKey(k)) {
+			pool.release(bitmap);
+			return;
+		}
+		Part part = new Part(bitmap, zoom, drawOrder);
+		parts.put(k, part);
+		size += part.bytes;
+		trimTo(budget);
+	}
+
+	/**
+	 * Set the zoom level currently displayed. Parts far away from it will be
+	 * removed first.
+	 *
+	 * @param zoom
+	 */
+	public synchronized void setCurrentZoom(int zoom) {
+		this.currentZoom = zoom;
+	}
+
+	/**
+	 * Remove parts until at most the given bytes are cached, if memory runs
+	 * out. The budget is not changed.
+	 *
+	 * @param bytes
+	 */
+	public synchronized void trim(long bytes) {
+		trimTo(bytes);
+	}
+
+	/**
+	 * Remove all parts.
+	 */
+	public synchronized void clear() {
+		for (Part p : parts.values()) {
+			pool.release(p.bitmap);
+		}
+		parts.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return maximum bytes of all cached Bitmaps
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @return bytes of all currently cached Bitmaps
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return count of get requests which found a part
+	 */
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return count of get requests which found no part
+	 */
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return count of parts removed to stay in budget
+	 */
+	public synchronized int getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Remove parts until at most max bytes are cached. Compares the
+	 * EVICTIONWindow least recently used parts and removes the one with the
+	 * highest cost.
+	 */
+	private void trimTo(long max) {
+		while (size > max && !parts.isEmpty()) {
+			Key victim = null;
+			int victimCost = Integer.MIN_VALUE;
+			Iterator<Map.Entry<Key, Part>> eldest = parts.entrySet().iterator();
+			for (int i = 0; i < EVICTIONWindow && eldest.hasNext(); i++) {
+				Map.Entry<Key, Part> e = eldest.next();
+				Part p = e.getValue();
+				int cost = (EVICTIONWindow - i) + ZOOMWeight
+						* Math.abs(p.zoom - currentZoom) + LAYERWeight
+						* p.drawOrder;
+				if (cost > victimCost) {
+					victimCost = cost;
+					victim = e.getKey();
+				}
+			}
+			Part removed = parts.remove(victim);
+			size -= removed.bytes;
+			evictions++;
+			pool.release(removed.bitmap);
+		}
+	}
+
+	/**
+	 * Identifies a part by its layer and its key in this layer.
+	 */
+	private static class Key {
+
+		private String layer;
+		private long key;
+
+		private Key(String layer, long key) {
+			this.layer = layer;
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return layer.hashCode() * 31 + (int) (key ^ (key >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return key == other.key && layer.equals(other.layer);
+		}
+	}
+
+	/**
+	 * A cached Bitmap with the information needed to choose it for removal.
+	 */
+	private static class Part {
+
+		private Bitmap bitmap;
+		private int bytes;
+		private int zoom;
+		private int drawOrder;
+
+		private Part(Bitmap bitmap, int zoom, int drawOrder) {
+			this.bitmap = bitmap;
+			this.bytes = bitmap.getRowBytes() * bitmap.getHeight();
+			this.zoom = zoom;
+			this.drawOrder = drawOrder;
+		}
+	}
+}
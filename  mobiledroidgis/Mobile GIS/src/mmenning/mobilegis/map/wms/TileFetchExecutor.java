@@ -0,0 +1,222 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Fixed pool of worker Threads which executes the loading tasks of all
+ * registered Clients (usually WMSLoaders). The workers take the tasks from the
+ * Clients in round robin order, so every Client gets the same share of the
+ * pool, and never run more than a limited count of tasks against one host at
+ * the same time.
+ *
+ * @see {@link WMSLoader}
+ */
+public class TileFetchExecutor {
+
+	private static final String DT = "TileFetchExecutor";
+
+	/**
+	 * Source of tasks for the TileFetchExecutor.
+	 */
+	public interface Client {
+
+		/**
+		 * @return host all tasks of this Client will connect to, used to limit
+		 *         the concurrent connections per host.
+		 */
+		public String getHost();
+
+		/**
+		 * Remove the next task from the Client. Will be called while the
+		 * executor is locked, so it must not block.
+		 *
+		 * @return the next task or null if the Client has nothing to do
+		 */
+		public Runnable nextTask();
+	}
+
+	private static TileFetchExecutor sharedExecutor;
+
+	/**
+	 * Get the TileFetchExecutor shared by all WMSLoaders. It will be created
+	 * with {@link WMSUtils#FETCHThreads} workers and
+	 * {@link WMSUtils#MAXConnectionsPerHost} on the first call.
+	 *
+	 * @return the shared TileFetchExecutor
+	 */
+	public static synchronized TileFetchExecutor getShared() {
+		if (sharedExecutor == null) {
+			sharedExecutor = new TileFetchExecutor(WMSUtils.FETCHThreads,
+					WMSUtils.MAXConnectionsPerHost);
+		}
+		return sharedExecutor;
+	}
+
+	private ArrayList<Client> clients;
+
+	private HashMap<String, Integer> runningPerHost;
+
+	private int maxPerHost;
+
+	private int nextClient;
+
+	private int running;
+
+	private boolean shutdown;
+
+	/**
+	 * Instantiate a new TileFetchExecutor and start its workers.
+	 *
+	 * @param threads
+	 *            count of worker Threads
+	 * @param maxPerHost
+	 *            maximum count of tasks running against the same host
+	 */
+	public TileFetchExecutor(int threads, int maxPerHost) {
+		this.clients = new ArrayList<Client>();
+		this.runningPerHost = new HashMap<String, Integer>();
+		this.maxPerHost = maxPerHost;
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Worker(), DT + "-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Register a Client. Its tasks will be executed from now on.
+	 *
+	 * @param client
+	 */
+	public synchronized void register(Client client) {
+		if (!clients.contains(client)) {
+			clients.add(client);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Unregister a Client. Already running tasks will be finished.
+	 *
+	 * @param client
+	 */
+	public synchronized void unregister(Client client) {
+		int index = clients.indexOf(client);
+		if (index >= 0) {
+			clients.remove(index);
+			if (nextClient > index) {
+				nextClient--;
+			}
+		}
+	}
+
+	/**
+	 * Notify the workers that a Client got new tasks.
+	 */
+	public synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	/**
+	 * Estimate whether any task is currently executed.
+	 *
+	 * @return true if no worker is busy
+	 */
+	public synchronized boolean isIdle() {
+		return running == 0;
+	}
+
+	/**
+	 * Stop all workers after they finished their current task.
+	 */
+	public synchronized void shutdown() {
+		shutdown = true;
+		notifyAll();
+	}
+
+	/**
+	 * Count of running tasks for the given host.
+	 */
+	private int runningFor(String host) {
+		Integer count = runningPerHost.get(host);
+		return count == null ? 0 : count.intValue();
+	}
+
+	/**
+	 * Inner Class which takes the tasks from the Clients and runs them.
+	 */
+	private class Worker implements Runnable {
+
+		public void run() {
+			while (true) {
+				Runnable task = null;
+				String host = null;
+				synchronized (TileFetchExecutor.this) {
+					while (task == null) {
+						if (shutdown) {
+							return;
+						}
+						/*
+						 * ask every client once, beginning with the one next
+						 * to the last served
+						 */
+						int count = clients.size();
+						for (int i = 0; i < count && task == null; i++) {
+							int index = (nextClient + i) % count;
+							Client c = clients.get(index);
+							host = c.getHost();
+							if (runningFor(host) < maxPerHost) {
+								task = c.nextTask();
+								if (task != null) {
+									nextClient = (index + 1) % count;
+								}
+							}
+						}
+						if (task == null) {
+							try {
+								TileFetchExecutor.this.wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					runningPerHost.put(host, runningFor(host) + 1);
+					running++;
+				}
+
+				try {
+					task.run();
+				} catch (Throwable e) {
+					/*
+					 * a failing task must not stop the worker
+					 */
+					Log.w(DT, e);
+				} finally {
+					synchronized (TileFetchExecutor.this) {
+						runningPerHost.put(host, runningFor(host) - 1);
+						running--;
+						TileFetchExecutor.this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+}
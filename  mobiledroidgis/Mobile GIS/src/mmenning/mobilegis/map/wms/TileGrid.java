@@ -0,0 +1,269 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.map.wms;
+
+/**
+ * Fixed grid of 256x256 parts in Spherical Mercator (EPSG:3857), the same z/x/y
+ * tile matrix as used by the map itself. The BoundingBoxes are calculated in
+ * double precision from the grid position only, so the same part always
+ * results in the same GetMap request, independent of the current Projection.
+ *
+ * The WMSOverlay identifies parts relative to the part right below and right
+ * of GeoPoint(0,0). All methods take the zoom level of the MapView, at which
+ * the world is 256 * 2^(zoom-1) pixels wide, so the tile matrix has the zoom
+ * level z = zoom - 1, column = identX + 2^(z-1) and row = 2^(z-1) - identY.
+ *
+ * @see {@link WMSUtils}
+ */
+public class TileGrid {
+
+	/**
+	 * half of the circumference of the earth in Spherical Mercator meters
+	 */
+	private static final double ORIGINShift = 20037508.342789244;
+
+	private static final double EARTHRadius = 6378137.0;
+
+	/**
+	 * decimal places of BoundingBoxes in meters
+	 */
+	private static final int METERDecimals = 2;
+
+	/**
+	 * decimal places of BoundingBoxes in degrees
+	 */
+	private static final int DEGREEDecimals = 8;
+
+	/**
+	 * Estimate whether BoundingBoxes in the given SRS can be calculated.
+	 *
+	 * @param srs
+	 *            EPSG Code
+	 * @return true for EPSG:3857, EPSG:900913 and EPSG:4326
+	 */
+	public static boolean supports(String srs) {
+		return isMercator(srs) || WMSUtils.recommendedSRS.equalsIgnoreCase(srs);
+	}
+
+	/**
+	 * Estimate whether the grid can be used at the given zoom level. Below
+	 * zoom level 2 the world is smaller than two parts and the parts of the
+	 * WMSOverlay are not aligned to the grid.
+	 *
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @return true if the zoom level is at least 2
+	 */
+	public static boolean supports(int zoom) {
+		return zoom >= 2 && zoom <= 31;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @return the zoom level of the tile matrix
+	 */
+	public static int gridZoom(int zoom) {
+		return zoom - 1;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @return count of columns and of rows of the tile matrix
+	 */
+	public static int size(int zoom) {
+		return 1 << gridZoom(zoom);
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param identX
+	 *            horizontal identifier used by the WMSOverlay
+	 * @return the column in the tile matrix
+	 */
+	public static int column(int zoom, int identX) {
+		return identX + size(zoom) / 2;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param identY
+	 *            vertical identifier used by the WMSOverlay
+	 * @return the row in the tile matrix, 0 is the northmost one
+	 */
+	public static int row(int zoom, int identY) {
+		return size(zoom) / 2 - identY;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param column
+	 *            column in the tile matrix
+	 * @return the horizontal identifier used by the WMSOverlay
+	 */
+	public static int identX(int zoom, int column) {
+		return column - size(zoom) / 2;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param row
+	 *            row in the tile matrix, 0 is the northmost one
+	 * @return the vertical identifier used by the WMSOverlay
+	 */
+	public static int identY(int zoom, int row) {
+		return size(zoom) / 2 - row;
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param longitudeE6
+	 *            longitude in microdegrees
+	 * @return the column in the tile matrix containing the longitude
+	 */
+	public static int columnOf(int zoom, int longitudeE6) {
+		double x = (longitudeE6 / 1E6 + 180.0) / 360.0;
+		return clamp(zoom, (int) Math.floor(x * size(zoom)));
+	}
+
+	/**
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param latitudeE6
+	 *            latitude in microdegrees
+	 * @return the row in the tile matrix containing the latitude, 0 is the
+	 *         northmost one
+	 */
+	public static int rowOf(int zoom, int latitudeE6) {
+		double lat = Math.toRadians(latitudeE6 / 1E6);
+		double y = Math.log(Math.tan(Math.PI / 4 + lat / 2));
+		return clamp(zoom, (int) Math.floor((1 - y / Math.PI) / 2
+				* size(zoom)));
+	}
+
+	/**
+	 * Append the BoundingBox of a part as minx,miny,maxx,maxy.
+	 *
+	 * @param buf
+	 *            to append to
+	 * @param srs
+	 *            EPSG Code, must be supported
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param column
+	 *            column in the tile matrix
+	 * @param row
+	 *            row in the tile matrix
+	 */
+	public static void appendBBOX(StringBuffer buf, String srs, int zoom,
+			int column, int row) {
+		appendBBOX(buf, srs, zoom, column, row, 1, 1);
+	}
+
+	/**
+	 * Append the BoundingBox of a block of parts as minx,miny,maxx,maxy.
+	 * 
+	 * @param buf
+	 *            to append to
+	 * @param srs
+	 *            EPSG Code, must be supported
+	 * @param zoom
+	 *            zoom level of the MapView
+	 * @param column
+	 *            left column of the block in the tile matrix
+	 * @param row
+	 *            top row of the block in the tile matrix
+	 * @param columns
+	 *            count of columns of the block
+	 * @param rows
+	 *            count of rows of the block
+	 */
+	public static void appendBBOX(StringBuffer buf, String srs, int zoom,
+			int column, int row, int columns, int rows) {
+		double partSize = 2 * ORIGINShift / size(zoom);
+		double minX = column * partSize - ORIGINShift;
+		double maxX = (column + columns) * partSize - ORIGINShift;
+		double maxY = ORIGINShift - row * partSize;
+		double minY = ORIGINShift - (row + rows) * partSize;
+
+		if (isMercator(srs)) {
+			appendFixed(buf, minX, METERDecimals);
+			buf.append(',');
+			appendFixed(buf, minY, METERDecimals);
+			buf.append(',');
+			appendFixed(buf, maxX, METERDecimals);
+			buf.append(',');
+			appendFixed(buf, maxY, METERDecimals);
+		} else {
+			appendFixed(buf, longitude(minX), DEGREEDecimals);
+			buf.append(',');
+			appendFixed(buf, latitude(minY), DEGREEDecimals);
+			buf.append(',');
+			appendFixed(buf, longitude(maxX), DEGREEDecimals);
+			buf.append(',');
+			appendFixed(buf, latitude(maxY), DEGREEDecimals);
+		}
+	}
+
+	private static int clamp(int zoom, int index) {
+		return Math.max(0, Math.min(size(zoom) - 1, index));
+	}
+
+	private static boolean isMercator(String srs) {
+		return WMSUtils.idealSRS.equalsIgnoreCase(srs)
+				|| "EPSG:900913".equalsIgnoreCase(srs);
+	}
+
+	private static double longitude(double x) {
+		return x / ORIGINShift * 180.0;
+	}
+
+	private static double latitude(double y) {
+		return Math.toDegrees(2 * Math.atan(Math.exp(y / EARTHRadius))
+				- Math.PI / 2);
+	}
+
+	/**
+	 * Append a number with a fixed count of decimal places and without
+	 * exponent, so the result does not depend on the float formatting.
+	 */
+	private static void appendFixed(StringBuffer buf, double value,
+			int decimals) {
+		long scale = 1;
+		for (int i = 0; i < decimals; i++) {
+			scale *= 10;
+		}
+		long units = Math.round(value * scale);
+		if (units < 0) {
+			buf.append('-');
+			units = -units;
+		}
+		buf.append(units / scale);
+		if (decimals > 0) {
+			buf.append('.');
+			long fraction = units % scale;
+			for (long digit = scale / 10; digit > 0; digit /= 10) {
+				buf.append((char) ('0' + (fraction / digit) % 10));
+			}
+		}
+	}
+}
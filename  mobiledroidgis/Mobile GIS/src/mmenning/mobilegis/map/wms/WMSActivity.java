@@ -18,7 +18,6 @@ package mmenning.mobilegis.map.wms;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -30,6 +29,7 @@ import javax.xml.parsers.SAXParserFactory;
 
 import mmenning.mobilegis.R;
 import mmenning.mobilegis.map.wms.WMSView.WMSListener;
+import mmenning.mobilegis.util.HttpConnector;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -379,7 +379,9 @@ public class WMSActivity extends Activity {
 			try {
 				this.handler.sendEmptyMessage(START);
 
-				URL url = new URL(WMSUtils.generateGetCapabilitiesURL(this.url));
+				HttpConnector.Response response = HttpConnector.getShared(
+						WMSActivity.this).get(
+						WMSUtils.generateGetCapabilitiesURL(this.url), false);
 
 				/* Get a SAXParser from the SAXPArserFactory. */
 				SAXParserFactory spf = SAXParserFactory.newInstance();
@@ -388,18 +390,28 @@ public class WMSActivity extends Activity {
 				/* Get the XMLReader of the SAXParser we created. *///
 				XMLReader xr = sp.getXMLReader();
 				/* Create a new ContentHandler and apply it to the XML-Reader */
-				GetCapabilitiesHandler handler = new GetCapabilitiesHandler();
+				WMSDB.Ingest ingest = db.new Ingest();
+				GetCapabilitiesHandler handler = new GetCapabilitiesHandler(
+						ingest);
 				xr.setContentHandler(handler);
 
 				/* Parse the xml-data from our URL. */
-				InputSource in = new InputSource(url.openStream());
+				InputSource in = new InputSource(response.getInputStream());
 				in.setEncoding(WMSUtils.ENCODING);
 
-				xr.parse(in);
-
-				ParsedWMSDataSet data = handler.getParsedData();
-
-				db.addParsedData(data);
+				try {
+					xr.parse(in);
+				} catch (IOException e) {
+					ingest.abort();
+					throw e;
+				} catch (SAXException e) {
+					ingest.abort();
+					throw e;
+				} finally {
+					response.close();
+				}
+
+				ingest.finish(handler.getParsedData());
 
 				this.handler.sendEmptyMessage(SUCCESS);
 			} catch (ConnectException e) {
@@ -15,17 +15,19 @@
  */
 package mmenning.mobilegis.map.wms;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 
 import mmenning.mobilegis.R;
 
 import mmenning.mobilegis.database.NetImageStorage;
 import mmenning.mobilegis.database.SQLiteOnSDCard;
+import mmenning.mobilegis.map.wms.ParsedWMSDataSet.ParsedLayer;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 /**
  * Manage a SQLite database to hold WMSData and LayerData. As in the
@@ -36,6 +38,18 @@ import android.database.sqlite.SQLiteDatabase;
  * WMS manifold, because by adding a new ParsedDataSet it is checked whether
  * there is already one with the same url.
  * 
+ * Layers support every SRS of their root layers. Only the SRS a layer lists by
+ * itself are stored for it, the inherited ones are found through its root
+ * layers.
+ * 
+ * A WMS is inserted in one transaction with precompiled statements. The ids of
+ * its layers are counted up from the highest id in the database, so no query
+ * is needed per layer. Legend and logo images are downloaded in the
+ * background after the transaction is committed.
+ * 
+ * Every write increments a version shared by all instances, so views of the
+ * visible layers can be kept until the version changes.
+ * 
  * @author Mathias Menninghaus
  * @version 23.10.2009
  * 
@@ -52,6 +66,11 @@ public class WMSDB {
 	 */
 	private static final String DT = "WMSData";
 
+	/**
+	 * incremented on every write
+	 */
+	private static volatile int version;
+
 	/**
 	 * Name of the Database to which this model is connected
 	 */
@@ -159,6 +178,20 @@ public class WMSDB {
                 default_wms_url = ctx.getString(R.string.default_wms_url);
 	}
 
+	/**
+	 * Get the version of the stored data, which changes on every write by
+	 * any instance of WMSDB.
+	 * 
+	 * @return the current version
+	 */
+	public static int getVersion() {
+		return version;
+	}
+
+	private static synchronized void changed() {
+		version++;
+	}
+
 	/**
 	 * Insert WMSData from a ParsedWMSDataSet. It is not inserted when the
 	 * database already contains a wms with the same url.Also all containing
@@ -171,51 +204,367 @@ public class WMSDB {
 	 */
 	public int addParsedData(ParsedWMSDataSet in) {
 
-		Cursor c = db.query(WMS_TABLE, new String[] { ID }, WMS_url + "='"
-				+ in.url + "'", null, null, null, null);
-		int wmsID;
-		if (!c.moveToFirst()) {
+		int wmsID = getWMSID(in.url);
+		if (wmsID == -1) {
 
-			ContentValues values = new ContentValues();
-			values.put(WMS_name, in.name);
-			values.put(WMS_description, in.description);
-			values.put(WMS_title, in.title);
-			values.put(WMS_url, in.url);
-			values.put(WMS_version, in.version);
-			values.put(WMS_getMapURL, in.getMapURL);
-			values.put(WMS_supportsPNG, in.supportsPNG ? TRUE : FALSE);
-			values.put(WMS_visible, FALSE);
-			final int rootLayerID = getNextlayerID();
-			values.put(WMS_rootLayer, rootLayerID);
-
-			db.insert(WMS_TABLE, null, values);
-			c.requery();
-			c.moveToFirst();
-			wmsID = c.getInt(0);
-
-			insertLayer(in.rootLayer, ROOTLAYER, wmsID);
-                        
-                        //Itacasoft 2012-12: default wms (demo) should be visible soon and easily 
-                        // to a potential customer/user
-                        if (in.getMapURL.startsWith(default_wms_url))
-                        {
-                            setSRS(in.rootLayer.ID, WMSUtils.idealSRS);                            
-                            for (int i=0; i<in.rootLayer.parsedLayers.size(); i++)
-                            {
-                                setLayerVisibility(in.rootLayer.parsedLayers.get(i).ID, true);
-                                setSRS(in.rootLayer.parsedLayers.get(i).ID, WMSUtils.idealSRS);
-                            }
-                        }
-                        
+			LayerWriter writer = new LayerWriter();
+			try {
+				wmsID = insertWMS(in, writer.nextLayerID);
+
+				insertLayer(writer, in.rootLayer, ROOTLAYER, wmsID);
+
+				showDefaultWMS(in, in.rootLayer.ID);
+
+				writer.finish(true);
+			} finally {
+				writer.finish(false);
+			}
+		}
+
+		return wmsID;
+	}
+
+	/**
+	 * count of Layers an Ingest inserts in one transaction
+	 */
+	private static final int INGEST_BATCH = 64;
+
+	/**
+	 * Receives the Layers of a GetCapabilitiesHandler and inserts them while
+	 * they are parsed, so the memory does not grow with the count of Layers.
+	 * The WMS will be inserted with its first Layer. If the database already
+	 * contains a WMS with the same url, nothing will be inserted.
+	 * 
+	 * The Layers are inserted in batches of INGEST_BATCH, each in its own
+	 * short transaction, so no transaction is held open while the document is
+	 * downloaded. finish() commits the last batch, abort() rolls it back and
+	 * deletes the WMS with all Layers written so far.
+	 * 
+	 * @author Mathias Menninghaus
+	 */
+	public class Ingest implements GetCapabilitiesHandler.LayerListener {
+
+		private int wmsID = -1;
+
+		private boolean known;
+
+		private Integer rootLayerID;
+
+		/**
+		 * not null while a batch is open
+		 */
+		private LayerWriter writer;
+
+		/**
+		 * count of Layers in the open batch
+		 */
+		private int batched;
+
+		/**
+		 * true if a batch was committed
+		 */
+		private boolean written;
+
+		public void onLayer(ParsedWMSDataSet data, ParsedLayer layer) {
+			if (known) {
+				return;
+			}
+			if (wmsID == -1) {
+				wmsID = getWMSID(data.url);
+				if (wmsID != -1) {
+					known = true;
+					return;
+				}
+			}
+			try {
+				if (writer == null) {
+					begin(data);
+				}
+				writer.insert(layer, layer.rootLayer == null ? ROOTLAYER
+						: layer.rootLayer.ID, wmsID);
+				if (layer.rootLayer == null) {
+					rootLayerID = layer.ID;
+				}
+				if (++batched >= INGEST_BATCH) {
+					commit();
+				}
+			} catch (RuntimeException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Must be called after the document was parsed completely. Commits
+		 * the last batch.
+		 * 
+		 * @param data
+		 *            the parsed service
+		 * @return id of the currently or already available WMSData
+		 */
+		public int finish(ParsedWMSDataSet data) {
+			if (data == null || known) {
+				return wmsID;
+			}
+			try {
+				if (wmsID == -1) {
+					wmsID = getWMSID(data.url);
+					if (wmsID != -1) {
+						known = true;
+						return wmsID;
+					}
+				}
+				if (writer == null) {
+					begin(data);
+				}
+				if (rootLayerID != null) {
+					showDefaultWMS(data, rootLayerID);
+				}
+				commit();
+			} catch (RuntimeException e) {
+				abort();
+				throw e;
+			}
+			return wmsID;
+		}
+
+		/**
+		 * Roll back the open batch and delete everything inserted so far.
+		 * Should be called if the document could not be parsed.
+		 */
+		public void abort() {
+			if (writer != null) {
+				writer.finish(false);
+				writer = null;
+			}
+			if (written) {
+				deleteWMS(wmsID);
+				written = false;
+			}
+			if (!known) {
+				wmsID = -1;
+			}
+		}
+
+		/**
+		 * Open a batch, with the WMS itself if it is not inserted yet.
+		 */
+		private void begin(ParsedWMSDataSet data) {
+			writer = new LayerWriter();
+			batched = 0;
+			if (wmsID == -1) {
+				try {
+					wmsID = insertWMS(data, writer.nextLayerID);
+				} catch (RuntimeException e) {
+					writer.finish(false);
+					writer = null;
+					throw e;
+				}
+			}
+		}
+
+		private void commit() {
+			LayerWriter w = writer;
+			writer = null;
+			if (!w.finish(true)) {
+				throw new SQLException("Could not commit the Layers of WMS "
+						+ wmsID);
+			}
+			written = true;
+		}
+	}
+
+	private static final String insertLayer = "INSERT INTO " + LAYER_TABLE
+			+ " (" + LAYER_name + ", " + LAYER_title + ", " + LAYER_description
+			+ ", " + LAYER_legend_url + ", " + LAYER_attribution_logourl
+			+ ", " + LAYER_attribution_title + ", " + LAYER_attribution_url
+			+ ", " + LAYER_visible + ", " + LAYER_bbox_maxx + ", "
+			+ LAYER_bbox_maxy + ", " + LAYER_bbox_minx + ", "
+			+ LAYER_bbox_miny + ", " + LAYER_wms + ", " + LAYER_rootLayer
+			+ ", " + ID + ", " + LAYER_selectedSRS
+			+ ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String insertSRS = "INSERT INTO " + SRS_TABLE + " ("
+			+ SRS_srs + ", " + SRS_layer + ") VALUES (?, ?)";
+
+	/**
+	 * Inserts layers inside a transaction with precompiled statements. The
+	 * transaction begins with the construction and ends with finish.
+	 */
+	private class LayerWriter {
 
+		private SQLiteStatement layerStatement;
+
+		private SQLiteStatement srsStatement;
+
+		/**
+		 * id of the next inserted layer
+		 */
+		private int nextLayerID;
+
+		/**
+		 * legend and logo urls to be downloaded after the commit
+		 */
+		private ArrayList<String> images;
+
+		private boolean open;
+
+		private boolean committed;
+
+		private LayerWriter() {
+			db.beginTransaction();
+			open = true;
+			try {
+				nextLayerID = getNextlayerID();
+				layerStatement = db.compileStatement(insertLayer);
+				srsStatement = db.compileStatement(insertSRS);
+			} catch (RuntimeException e) {
+				finish(false);
+				throw e;
+			}
+			images = new ArrayList<String>();
+		}
+
+		/**
+		 * Insert a layer without its containing layers. Only its own srs will
+		 * be stored, the srs of its root layers are inherited.
+		 */
+		private void insert(ParsedLayer parsedLayer, int rootlayerID,
+				int wmsID) {
+			final int layerID = nextLayerID++;
+			// Itacasoft 2012-12: store the ID
+			parsedLayer.ID = layerID;
+
+			SQLiteStatement s = layerStatement;
+			bind(s, 1, parsedLayer.name);
+			bind(s, 2, parsedLayer.title);
+			bind(s, 3, parsedLayer.description);
+			bind(s, 4, parsedLayer.legend_url);
+			bind(s, 5, parsedLayer.attribution_logourl);
+			bind(s, 6, parsedLayer.attribution_title);
+			bind(s, 7, parsedLayer.attribution_url);
+			s.bindLong(8, FALSE);
+			s.bindDouble(9, parsedLayer.bbox_maxx);
+			s.bindDouble(10, parsedLayer.bbox_maxy);
+			s.bindDouble(11, parsedLayer.bbox_minx);
+			s.bindDouble(12, parsedLayer.bbox_miny);
+			s.bindLong(13, wmsID);
+			s.bindLong(14, rootlayerID);
+			s.bindLong(15, layerID);
+			s.bindLong(16, NOSRS);
+			s.executeInsert();
+
+			if (parsedLayer.parsedSRS != null) {
+				for (String srs : parsedLayer.parsedSRS) {
+					srsStatement.bindString(1, srs);
+					srsStatement.bindLong(2, layerID);
+					srsStatement.executeInsert();
+				}
+			}
+
+			if (parsedLayer.attribution_logourl != null) {
+				images.add(parsedLayer.attribution_logourl);
+			}
+			if (parsedLayer.legend_url != null) {
+				images.add(parsedLayer.legend_url);
+			}
+		}
+
+		/**
+		 * End the transaction, does nothing if it is already ended. If it is
+		 * committed, the images will be downloaded in the background.
+		 * 
+		 * @param commit
+		 *            true to commit the transaction, false to roll it back
+		 * @return true if the transaction was committed
+		 */
+		private boolean finish(boolean commit) {
+			if (open) {
+				open = false;
+				if (layerStatement != null) {
+					layerStatement.close();
+				}
+				if (srsStatement != null) {
+					srsStatement.close();
+				}
+				if (commit) {
+					db.setTransactionSuccessful();
+				}
+				db.endTransaction();
+				committed = commit;
+				if (commit) {
+					changed();
+					new NetImageStorage(context).storeInBackground(images);
+				}
+			}
+			return committed;
+		}
+	}
+
+	private static void bind(SQLiteStatement s, int index, String value) {
+		if (value == null) {
+			s.bindNull(index);
 		} else {
-			c.moveToFirst();
-			wmsID = c.getInt(0);
+			s.bindString(index, value);
 		}
+	}
 
+	/**
+	 * Id of the WMS with the given url.
+	 * 
+	 * @return the id or -1 if there is no such WMS
+	 */
+	private int getWMSID(String url) {
+		if (url == null) {
+			return -1;
+		}
+		Cursor c = db.query(WMS_TABLE, new String[] { ID }, WMS_url + "=?",
+				new String[] { url }, null, null, null);
+		int ret = -1;
+		if (c.moveToFirst()) {
+			ret = c.getInt(0);
+		}
 		c.close();
+		return ret;
+	}
 
-		return wmsID;
+	/**
+	 * Insert the WMS without its Layers.
+	 * 
+	 * @param rootLayerID
+	 *            id of the root layer of the WMS
+	 * @return id of the new WMS
+	 */
+	private int insertWMS(ParsedWMSDataSet in, int rootLayerID) {
+		ContentValues values = new ContentValues();
+		values.put(WMS_name, in.name);
+		values.put(WMS_description, in.description);
+		values.put(WMS_title, in.title);
+		values.put(WMS_url, in.url);
+		values.put(WMS_version, in.version);
+		values.put(WMS_getMapURL, in.getMapURL);
+		values.put(WMS_supportsPNG, in.supportsPNG ? TRUE : FALSE);
+		values.put(WMS_visible, FALSE);
+		values.put(WMS_rootLayer, rootLayerID);
+
+		return (int) db.insert(WMS_TABLE, null, values);
+	}
+
+	/**
+	 * Itacasoft 2012-12: default wms (demo) should be visible soon and easily
+	 * to a potential customer/user
+	 */
+	private void showDefaultWMS(ParsedWMSDataSet in, int rootLayerID) {
+		if (in.getMapURL != null && in.getMapURL.startsWith(default_wms_url)) {
+			setSRS(rootLayerID, WMSUtils.idealSRS);
+			Cursor c = db.query(LAYER_TABLE, new String[] { ID },
+					LAYER_rootLayer + "=" + rootLayerID, null, null, null, null);
+			while (c.moveToNext()) {
+				setLayerVisibility(c.getInt(0), true);
+				setSRS(c.getInt(0), WMSUtils.idealSRS);
+			}
+			c.close();
+		}
 	}
 
 	/**
@@ -256,7 +605,7 @@ public class WMSDB {
 						WMS_rootLayer)));
 
 		db.delete(WMS_TABLE, ID + "=" + wmsID, null);
-
+		changed();
 	}
 
 	/**
@@ -384,8 +733,9 @@ public class WMSDB {
 	 */
 	public String[] getSRS(int layerID) {
 
-		Cursor c = db.query(SRS_TABLE, new String[] { SRS_srs }, SRS_layer
-				+ "=" + layerID, null, null, null, SRS_srs + " DESC");
+		Cursor c = db.query(true, SRS_TABLE, new String[] { SRS_srs },
+				SRS_layer + " IN (" + getLayerPath(layerID) + ")", null, null,
+				null, SRS_srs + " DESC", null);
 
 		String[] ret = new String[c.getCount()];
 
@@ -600,6 +950,7 @@ public class WMSDB {
 		ContentValues values = new ContentValues();
 		values.put(LAYER_visible, visible ? TRUE : FALSE);
 		db.update(LAYER_TABLE, values, ID + "=" + layerID, null);
+		changed();
 	}
 
 	/**
@@ -614,7 +965,7 @@ public class WMSDB {
 		ContentValues values = new ContentValues();
 		values.put(WMS_priority, priority);
 		db.update(WMS_TABLE, values, ID + "=" + wmsID, null);
-
+		changed();
 	}
 
 	/**
@@ -629,15 +980,16 @@ public class WMSDB {
 	 */
 	public boolean setSRS(int layerID, String srs) {
 
-		Cursor c = db.query(SRS_TABLE, new String[] { ID }, SRS_srs + "='"
-				+ srs + "' AND " + SRS_layer + "=" + layerID, null, null, null,
-				null);
+		Cursor c = db.query(SRS_TABLE, new String[] { ID }, SRS_srs + "=? AND "
+				+ SRS_layer + " IN (" + getLayerPath(layerID) + ")",
+				new String[] { srs }, null, null, null);
 
 		if (c.moveToFirst()) {
 			ContentValues values = new ContentValues();
 			values.put(LAYER_selectedSRS, c.getInt(0));
 			db.update(LAYER_TABLE, values, ID + "=" + layerID, null);
 			c.close();
+			changed();
 			return true;
 
 		} else {
@@ -660,6 +1012,7 @@ public class WMSDB {
 		ContentValues values = new ContentValues();
 		values.put(WMS_visible, visible ? TRUE : FALSE);
 		db.update(WMS_TABLE, values, ID + "=" + wmsID, null);
+		changed();
 	}
 
 	/**
@@ -721,6 +1074,28 @@ public class WMSDB {
 
 	}
 
+	/**
+	 * Ids of the layer and all its root layers, separated by commas.
+	 */
+	private String getLayerPath(int layerID) {
+		StringBuffer buf = new StringBuffer();
+		buf.append(layerID);
+		ArrayList<Integer> seen = new ArrayList<Integer>();
+		int id = layerID;
+		while (true) {
+			seen.add(id);
+			Cursor c = db.query(LAYER_TABLE, new String[] { LAYER_rootLayer },
+					ID + "=" + id, null, null, null, null);
+			id = c.moveToFirst() ? c.getInt(0) : ROOTLAYER;
+			c.close();
+			if (id == ROOTLAYER || seen.contains(id)) {
+				break;
+			}
+			buf.append(',').append(id);
+		}
+		return buf.toString();
+	}
+
 	private static final String selectMaxLayerID = "SELECT MAX(" + ID
 			+ ") FROM " + LAYER_TABLE;
 
@@ -756,73 +1131,17 @@ public class WMSDB {
 		return ret;
 	}
 
-	private void insertLayer(ParsedWMSDataSet.ParsedLayer parsedLayer,
-			int rootlayerID, int wmsID) {
-
-		ContentValues values = getLayerContentValues(parsedLayer, wmsID);
+	private void insertLayer(LayerWriter writer,
+			ParsedWMSDataSet.ParsedLayer parsedLayer, int rootlayerID,
+			int wmsID) {
 
-		final int rootID = getNextlayerID();
-                //Itacasoft 2012-12: store the ID
-                parsedLayer.ID = rootID;
-		values.put(LAYER_rootLayer, rootlayerID);
-		values.put(ID, rootID);
-                values.put(LAYER_selectedSRS, NOSRS);
-                
-		db.insert(LAYER_TABLE, null, values);
-
-		NetImageStorage nis = new NetImageStorage(this.context);
-		nis.store(parsedLayer.attribution_logourl);
-		nis.store(parsedLayer.legend_url);
-
-		insertSRS(parsedLayer.parsedSRS, rootID);
+		writer.insert(parsedLayer, rootlayerID, wmsID);
 
 		for (ParsedWMSDataSet.ParsedLayer l : parsedLayer.parsedLayers) {
-			/*
-			 * containing layer will support all srs of the rootLayer
-			 */
-			l.parsedSRS.addAll(parsedLayer.parsedSRS);
-			insertLayer(l, rootID, wmsID);
+			insertLayer(writer, l, parsedLayer.ID, wmsID);
 		}
 	}
 
-	private void insertSRS(HashSet<String> parsedSRS, int layerID) {
-		if (parsedSRS != null) {
-			for (String s : parsedSRS) {
-				ContentValues values = new ContentValues();
-				values.put(SRS_srs, s);
-				values.put(SRS_layer, layerID);
-				db.insert(SRS_TABLE, null, values);
-			}
-		}
-	}
-
-	private static ContentValues getLayerContentValues(
-			ParsedWMSDataSet.ParsedLayer parsedLayer, int wmsID) {
-
-		ContentValues values = new ContentValues();
-		values.put(LAYER_name, parsedLayer.name);
-		values.put(LAYER_title, parsedLayer.title);
-		values.put(LAYER_description, parsedLayer.description);
-
-		values.put(LAYER_legend_url, parsedLayer.legend_url);
-
-		values.put(LAYER_attribution_logourl, parsedLayer.attribution_logourl);
-		values.put(LAYER_attribution_title, parsedLayer.attribution_title);
-		values.put(LAYER_attribution_url, parsedLayer.attribution_url);
-
-		values.put(LAYER_visible, FALSE);
-
-		values.put(LAYER_bbox_maxx, parsedLayer.bbox_maxx);
-		values.put(LAYER_bbox_maxy, parsedLayer.bbox_maxy);
-		values.put(LAYER_bbox_minx, parsedLayer.bbox_minx);
-		values.put(LAYER_bbox_miny, parsedLayer.bbox_miny);
-
-		values.put(LAYER_wms, wmsID);
-
-		return values;
-
-	}
-
 	/**
 	 * Inner Class for managing the connection and first-time initialization of
 	 * the database
@@ -16,9 +16,15 @@
 package mmenning.mobilegis.map.wms;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
 
+import mmenning.mobilegis.database.DiskTileCache;
+import mmenning.mobilegis.database.TileArchive;
 import mmenning.mobilegis.map.wms.PriorityLoadingManager.Entry;
+import mmenning.mobilegis.util.HttpConnector;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Handler;
@@ -29,78 +35,173 @@ import com.google.android.maps.Projection;
 
 /**
  * Manages Storage and Loading of WMS Images. The Parts must be identified
- * definite by a Key K. Supports WMS Specification: </br> WMS 1.1.1 </br> OGC
+ * definite by a key, see {@link WMSUtils#partKey}. Supports WMS Specification: </br> WMS 1.1.1 </br> OGC
  * 01-068r3 </br>
  * 
- * The local Cache will only hold a specific amount of parts and delete the
- * oldest if it exceeds the limit.
+ * The loaded parts are stored in a {@link TileCache} and loaded by a
+ * {@link TileFetchExecutor}, both may be shared with other WMSLoaders. If a
+ * {@link DiskTileCache} is given, the raw responses are stored in it and parts
+ * found there will not be requested again. Parts in the TileGrid found in
+ * the {@link TileArchive} filled by the {@link AreaDownloader} will not be
+ * requested either.
+ * 
+ * If the SRS of the getMapBaseURL is supported by the {@link TileGrid}, the
+ * BoundingBoxes will be calculated from the grid position of the parts,
+ * otherwise from the Projection of the map.
+ * 
+ * An opaque WMSLoader requests its parts without transparency and decodes
+ * them in RGB_565, which needs half of the memory. Meant for base layers.
+ * 
+ * With metatiling, parts in the TileGrid are requested in blocks of parts,
+ * which are split into single parts for the TileCache. This needs less
+ * requests and labels are not cut at the borders of the parts.
  * 
  * @author Mathias Menninghaus
  * @version 23.10.2009
  * 
  * @see {@link WMSUtils}
- * 
- * @param <K> key Type
  */
-public class WMSLoader<K> {
+public class WMSLoader implements TileFetchExecutor.Client {
 
 	private static final String DT = "WMSLoader";
 
 	/**
-	 * If loading of an image succedes. Loading Threads will notify their
+	 * If loading of an image succedes. Loading Tasks will notify their
 	 * termination with STOP.
 	 */
 	public static final int LOADSUCCESS = 0;
 	/**
-	 * If loading of an image fails. Loading Threads will notify their
+	 * If loading of an image fails. Loading Tasks will notify their
 	 * termination with STOP.
 	 */
 	public static final int LOADFAIL = 1;
 	/**
-	 * If a Thread starts
+	 * If loading of a part starts
 	 */
 	public static final int START = 2;
 	/**
-	 * If a Thread ends.
+	 * If loading of a part ends.
 	 */
 	public static final int STOP = 3;
 
 	private String getMapBaseURL;
 
-	private PriorityMapQueue<K, Bitmap> wmsParts;
+	/**
+	 * getMapBaseURL as given, getMapBaseURL may differ if opaque
+	 */
+	private String transparentBaseURL;
+
+	private boolean opaque;
+
+	/**
+	 * SRS of the requests if it is supported by the TileGrid, else null
+	 */
+	private String tileGridSRS;
+
+	/*
+	 * count of columns and rows of parts requested at once, 1 to request
+	 * single parts
+	 */
+	private int metaColumns = 1;
+	private int metaRows = 1;
+
+	private TileCache wmsParts;
 
-	private PriorityLoadingManager<K, String> partsToLoad;
+	private PriorityLoadingManager<Long, PartRequest> partsToLoad;
 
-	private Thread[] loadingThreads;
+	private int drawOrder;
+
+	private TileFetchExecutor executor;
+
+	private DiskTileCache diskCache;
+
+	private TileArchive archive;
+
+	private HttpConnector http;
+
+	private String host;
 
 	private Handler handler;
 
 	/**
-	 * Instantiate a new WMSLoader.
+	 * currently running tasks by the key of their part
+	 */
+	private HashMap<Long, LoaderTask> running;
+
+	/**
+	 * reused to collect the keys of tasks to be cancelled
+	 */
+	private ArrayList<Long> toCancel;
+
+	/**
+	 * Instantiate a new WMSLoader which loads its parts with the shared
+	 * {@link TileFetchExecutor} into the shared {@link TileCache}.
 	 * 
 	 * @param getMapBaseURL
 	 *            BaseURL for WMS requests. {@link WMSUtils}
 	 * @param handler
-	 *            Handler to handle LoadingThread events.
+	 *            Handler to handle Loading events.
 	 */
 	public WMSLoader(String getMapBaseURL, Handler handler) {
-		this.wmsParts = new PriorityMapQueue<K, Bitmap>(
-				WMSUtils.AVERAGEStoredBitmapsPerLoader,
-				WMSUtils.MAXStoredBitmapsPerLoader);
-		this.partsToLoad = new PriorityLoadingManager<K, String>();
+		this(getMapBaseURL, handler, TileFetchExecutor.getShared(), TileCache
+				.getShared(), null, new HttpConnector(null));
+	}
+
+	/**
+	 * Instantiate a new WMSLoader.
+	 * 
+	 * @param getMapBaseURL
+	 *            BaseURL for WMS requests. {@link WMSUtils}
+	 * @param handler
+	 *            Handler to handle Loading events.
+	 * @param executor
+	 *            TileFetchExecutor to execute the loading tasks
+	 * @param cache
+	 *            TileCache to store the loaded parts
+	 * @param diskCache
+	 *            DiskTileCache to store the raw responses, may be null
+	 * @param http
+	 *            HttpConnector to open the connections with
+	 */
+	public WMSLoader(String getMapBaseURL, Handler handler,
+			TileFetchExecutor executor, TileCache cache,
+			DiskTileCache diskCache, HttpConnector http) {
+		this.wmsParts = cache;
+		this.diskCache = diskCache;
+		this.http = http;
+		this.partsToLoad = new PriorityLoadingManager<Long, PartRequest>();
+		this.running = new HashMap<Long, LoaderTask>();
+		this.toCancel = new ArrayList<Long>();
 		this.getMapBaseURL = getMapBaseURL;
-		loadingThreads = new Thread[WMSUtils.MAXTHREADSPerLoader];
+		this.transparentBaseURL = getMapBaseURL;
+		String srs = WMSUtils.getSRS(getMapBaseURL);
+		if (WMSUtils.TILEMATRIX && TileGrid.supports(srs)) {
+			this.tileGridSRS = srs;
+		}
 		this.handler = handler;
+		try {
+			this.host = new URL(getMapBaseURL).getHost();
+		} catch (MalformedURLException e) {
+			this.host = "";
+		}
+		this.executor = executor;
+		this.executor.register(this);
 	}
 
 	/**
 	 * Get a WMSPart specified with a key. If no such one Part will be found in
 	 * the Cache it will be load asynchronus and null will be returned. The
-	 * LoadingThread will notify the WMSLoaders Handler with LOADSUCCESS if the
+	 * Loading Task will notify the WMSLoaders Handler with LOADSUCCESS if the
 	 * part is completly loaded and cached.
 	 * 
 	 * @param key
 	 *            definite identifier for the part to be loaded
+	 * @param zoom
+	 *            zoom level the part belongs to
+	 * @param tileX
+	 *            horizontal position of the part in the grid of parts
+	 * @param tileY
+	 *            vertical position of the part in the grid of parts
 	 * @param left
 	 *            left coordinate for the part in screenpixels
 	 * @param top
@@ -110,9 +211,10 @@ public class WMSLoader<K> {
 	 *            calculated
 	 * @return Bitmap or null if it is not yet cached.
 	 */
-	public Bitmap loadMap(K key, int left, int top, Projection p) {
+	public Bitmap loadMap(long key, int zoom, int tileX, int tileY, int left,
+			int top, Projection p) {
 
-		Bitmap ret = wmsParts.getWithUpdate(key);
+		Bitmap ret = wmsParts.get(getMapBaseURL, key);
 
 		/*
 		 * DEBUG
@@ -122,123 +224,554 @@ public class WMSLoader<K> {
 		 */
 
 		if (ret == null) {
+			queue(key, zoom, tileX, tileY, left, top, WMSUtils.WIDTH,
+					WMSUtils.HEIGHT, p, false);
+		}
+		return ret;
+
+	}
+
+	/**
+	 * Get a part only if it is cached, it will not be loaded otherwise.
+	 * 
+	 * @param key
+	 *            definite identifier for the part
+	 * @return the cached Bitmap or null
+	 */
+	public Bitmap getCached(long key) {
+		return wmsParts.peek(getMapBaseURL, key);
+	}
+
+	/**
+	 * Queue a part to be loaded in advance if it is neither cached nor already
+	 * queued. Prefetches are loaded after all parts requested by loadMap.
+	 * 
+	 * @param key
+	 *            definite identifier for the part to be loaded
+	 * @param zoom
+	 *            zoom level the part belongs to
+	 * @param tileX
+	 *            horizontal position of the part in the grid of its zoom level
+	 * @param tileY
+	 *            vertical position of the part in the grid of its zoom level
+	 * @param left
+	 *            left coordinate for the part in screenpixels
+	 * @param top
+	 *            top coordinate for the part in screenpixels
+	 * @param width
+	 *            width of the part in screenpixels of the current zoom level
+	 * @param height
+	 *            height of the part in screenpixels of the current zoom level
+	 * @param p
+	 *            projection with which the corners of the part can be
+	 *            calculated
+	 */
+	public void prefetch(long key, int zoom, int tileX, int tileY, int left,
+			int top, int width, int height, Projection p) {
+		if (wmsParts.contains(getMapBaseURL, key)) {
+			return;
+		}
+		queue(key, zoom, tileX, tileY, left, top, width, height, p, true);
+	}
+
+	/**
+	 * Queue a part or the block containing it, if it is neither currently
+	 * loaded by a thread nor in the loading Queue.
+	 */
+	private void queue(long key, int zoom, int tileX, int tileY, int left,
+			int top, int width, int height, Projection p, boolean prefetch) {
+		int column = blockStart(zoom, TileGrid.column(zoom, tileX),
+				metaColumns);
+		int row = blockStart(zoom, TileGrid.row(zoom, tileY), metaRows);
+		PartRequest request = null;
+		if (column >= 0 && row >= 0) {
 			/*
-			 * if this part is neither currently loaded by a thread nor in the
-			 * loading Queue
+			 * the block is identified by its top left part and placed in the
+			 * viewport by its center
 			 */
-			if (!partsToLoad.threadRunsOrIsInQueue(key)) {
-				/*
-				 * build the url for getMap request
-				 */
-				GeoPoint[] corners;
-				corners = WMSUtils.corners(left, top, p);
-				String getMapURL = WMSUtils.generateGetMapURL(getMapBaseURL,
-						corners[WMSUtils.LOWERLEFT],
-						corners[WMSUtils.UPPERRIGHT]);
+			long blockKey = WMSUtils.partKey(zoom, TileGrid.identX(zoom,
+					column), TileGrid.identY(zoom, row));
+			if (partsToLoad.threadRunsOrIsInQueue(Long.valueOf(blockKey))) {
+				return;
+			}
+			String blockURL = WMSUtils.generateGetMapBlockURL(getMapBaseURL,
+					tileGridSRS, zoom, column, row, metaColumns, metaRows);
+			if (blockURL != null) {
+				key = blockKey;
+				tileX = TileGrid.identX(zoom, column + metaColumns / 2);
+				tileY = TileGrid.identY(zoom, row + metaRows / 2);
+				request = new PartRequest(getMapBaseURL, blockURL, zoom,
+						opaque, column, row, metaColumns, metaRows);
+			}
+		}
 
-				/*
-				 * insert to the head of the loading Queue
-				 */
-				partsToLoad.insertIntoLoadingQueue(key, getMapURL);
+		if (request == null) {
+			if (partsToLoad.threadRunsOrIsInQueue(Long.valueOf(key))) {
+				return;
+			}
+			/*
+			 * build the url for getMap request
+			 */
+			request = new PartRequest(getMapBaseURL, getMapURL(zoom, tileX,
+					tileY, left, top, width, height, p), zoom, opaque);
+			if (tileGridSRS != null && TileGrid.supports(zoom)) {
+				request.inGrid = true;
+				request.column = TileGrid.column(zoom, tileX);
+				request.row = TileGrid.row(zoom, tileY);
+			}
+		}
 
-				/*
-				 * try to start a thread for this if place is available
-				 */
-				for (int i = 0; i < loadingThreads.length; i++) {
-					if (loadingThreads[i] == null
-							|| !loadingThreads[i].isAlive()) {
-						loadingThreads[i] = new Thread(
-								new LoaderThread(handler));
-						loadingThreads[i].start();
-						i += loadingThreads.length;
-					}
+		if (prefetch) {
+			partsToLoad.insertPrefetch(Long.valueOf(key), request, zoom,
+					tileX, tileY);
+		} else {
+			/*
+			 * insert to the head of the loading Queue
+			 */
+			partsToLoad.insertIntoLoadingQueue(Long.valueOf(key), request,
+					zoom, tileX, tileY);
+		}
+
+		/*
+		 * let the executor know that there is something to do
+		 */
+		executor.wakeUp();
+	}
+
+	/**
+	 * First column or row of the block containing a part, aligned to the size
+	 * of the blocks and moved into the world at its borders.
+	 * 
+	 * @return the first column or row or -1 if the part has to be requested
+	 *         alone
+	 */
+	private int blockStart(int zoom, int index, int count) {
+		if (metaColumns * metaRows == 1 || tileGridSRS == null
+				|| !TileGrid.supports(zoom)) {
+			return -1;
+		}
+		int size = TileGrid.size(zoom);
+		if (index < 0 || index >= size || count > size) {
+			return -1;
+		}
+		return Math.min(index / count * count, size - count);
+	}
+
+	/**
+	 * Build the GetMap URL of a part, from its grid position if the TileGrid
+	 * may be used, else from its screen position.
+	 */
+	private String getMapURL(int zoom, int tileX, int tileY, int left,
+			int top, int width, int height, Projection p) {
+		if (tileGridSRS != null && TileGrid.supports(zoom)) {
+			return WMSUtils.generateGetMapURL(getMapBaseURL, tileGridSRS,
+					zoom, tileX, tileY);
+		}
+		GeoPoint[] corners = WMSUtils.corners(left, top, width, height, p);
+		return WMSUtils.generateGetMapURL(getMapBaseURL,
+				corners[WMSUtils.LOWERLEFT], corners[WMSUtils.UPPERRIGHT]);
+	}
+
+	/**
+	 * Drop all queued prefetches and cancel the running ones.
+	 */
+	public void cancelPrefetches() {
+		synchronized (running) {
+			partsToLoad.clearPrefetches(toCancel);
+			for (int i = 0; i < toCancel.size(); i++) {
+				LoaderTask task = running.get(toCancel.get(i));
+				if (task != null) {
+					task.cancel();
 				}
 			}
+			toCancel.clear();
+		}
+	}
 
+	/**
+	 * Estimate whether this WMSLoader has nothing to load.
+	 * 
+	 * @return true if no part is queued or loading
+	 */
+	public boolean isIdle() {
+		synchronized (running) {
+			return running.isEmpty() && partsToLoad.isEmpty();
 		}
-		return ret;
+	}
+
+	/**
+	 * Request the parts without transparency and decode them in RGB_565.
+	 * Queued parts will be dropped if this changes.
+	 * 
+	 * @param opaque
+	 */
+	public void setOpaque(boolean opaque) {
+		if (this.opaque == opaque) {
+			return;
+		}
+		stopLoading();
+		this.opaque = opaque;
+		this.getMapBaseURL = opaque ? transparentBaseURL.replaceFirst(
+				"TRANSPARENT=true", "TRANSPARENT=false") : transparentBaseURL;
+	}
+
+	/**
+	 * Request blocks of parts at once, which are split into single parts for
+	 * the TileCache. Only parts in the TileGrid can be requested in blocks.
+	 * Queued parts will be dropped if this changes.
+	 * 
+	 * @param columns
+	 *            count of columns of a block, 1 to request single parts
+	 * @param rows
+	 *            count of rows of a block, 1 to request single parts
+	 */
+	public void setMetaTiles(int columns, int rows) {
+		if (metaColumns == columns && metaRows == rows) {
+			return;
+		}
+		stopLoading();
+		this.metaColumns = columns;
+		this.metaRows = rows;
+	}
 
+	/**
+	 * Set the TileArchive filled by the {@link AreaDownloader}. Parts in the
+	 * TileGrid found there will not be requested.
+	 * 
+	 * @param archive
+	 *            may be null
+	 */
+	public void setArchive(TileArchive archive) {
+		this.archive = archive;
 	}
 
 	/**
-	 * Stop Loading of all Parts. The Threads will finish their current task and
-	 * not being interrupted.
+	 * @return BaseURL of the GetMap requests, differs from the given one if
+	 *         opaque
+	 */
+	public String getGetMapBaseURL() {
+		return getMapBaseURL;
+	}
+
+	/**
+	 * Set the position of this WMSLoader in the draw order of its Overlay. The
+	 * TileCache prefers to remove parts of upper layers.
+	 * 
+	 * @param drawOrder
+	 *            0 for the lowest layer
+	 */
+	public void setDrawOrder(int drawOrder) {
+		this.drawOrder = drawOrder;
+	}
+
+	/**
+	 * Set the currently displayed parts. Queued parts outside of the viewport
+	 * will be dropped and running requests for them cancelled, the parts
+	 * nearest to its center will be loaded first.
+	 * 
+	 * @param zoom
+	 *            zoom level currently displayed
+	 * @param centerX
+	 *            horizontal grid position of the center part
+	 * @param centerY
+	 *            vertical grid position of the center part
+	 * @param marginX
+	 *            maximum horizontal distance in parts to the center
+	 * @param marginY
+	 *            maximum vertical distance in parts to the center
+	 */
+	public void setViewport(int zoom, int centerX, int centerY, int marginX,
+			int marginY) {
+		if (!partsToLoad.setViewport(zoom, centerX, centerY, marginX,
+				marginY)) {
+			/*
+			 * the running tasks were started inside of this viewport
+			 */
+			return;
+		}
+		synchronized (running) {
+			if (running.isEmpty()) {
+				return;
+			}
+			partsToLoad.loadingOutsideViewport(toCancel);
+			for (int i = 0; i < toCancel.size(); i++) {
+				LoaderTask task = running.get(toCancel.get(i));
+				if (task != null) {
+					task.cancel();
+				}
+			}
+			toCancel.clear();
+		}
+	}
+
+	/**
+	 * Stop Loading of all Parts. The Executor will finish the current tasks
+	 * and they will not be interrupted.
 	 */
 	public void stopLoading() {
 		partsToLoad.clearLoadingQueue();
 	}
 
+	/**
+	 * Stop Loading of all Parts and unregister from the Executor. Should be
+	 * called if this WMSLoader is no longer used.
+	 */
+	public void release() {
+		stopLoading();
+		executor.unregister(this);
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public Runnable nextTask() {
+		Entry<Long, PartRequest> toLoad = partsToLoad
+				.removeFirstAndStartLoading();
+		if (toLoad == null) {
+			return null;
+		}
+		return new LoaderTask(toLoad);
+	}
+
 	@Override
 	protected void finalize() throws Throwable {
-		this.stopLoading();
+		this.release();
 		super.finalize();
 	}
 
 	/**
-	 * Inner Class to manage Loading from the Loading Queue.
+	 * Inner Class to load a single part from the Loading Queue.
 	 * 
 	 * @author Mathias Menninghaus
 	 * @version 23.10.2009
 	 * 
 	 */
-	private class LoaderThread implements Runnable {
+	private class LoaderTask implements Runnable {
+
+		private static final String DT = "WMSLoader.LoaderTask";
 
-		private static final String DT = "WMSLoader.LoaderThread";
+		private Entry<Long, PartRequest> toLoad;
 
-		private Handler handler;
+		private HttpConnector.Response connection;
 
-		public LoaderThread(Handler handler) {
-			this.handler = handler;
+		private boolean cancelled;
+
+		public LoaderTask(Entry<Long, PartRequest> toLoad) {
+			this.toLoad = toLoad;
+		}
+
+		/**
+		 * Cancel the request of this task. Closes the connection if it is
+		 * already open.
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+			if (connection != null) {
+				connection.disconnect();
+			}
 		}
 
 		public void run() {
 			handler.sendEmptyMessage(WMSLoader.START);
-			/*
-			 * while their are already parts in the loading queue
-			 */
-			while (!WMSLoader.this.partsToLoad.isEmpty()) {
-				URL url = null;
-				Bitmap image = null;
+			synchronized (running) {
+				running.put(toLoad.key, this);
+			}
+
+			String url = toLoad.value.url;
+			Bitmap image = null;
+
+			try {
+				if (toLoad.value.columns > 0 && loadArchived(toLoad.value)) {
+					handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
+					return;
+				}
 
 				/*
-				 * get a task an load the bitmap from this url
+				 * prefer the stored response, so no network is needed
 				 */
-				Entry toLoad = WMSLoader.this.partsToLoad
-						.removeFirstAndStartLoading();
+				byte[] data = diskCache == null ? null : diskCache.get(url);
+				if (data == null && archive != null && toLoad.value.inGrid) {
+					data = archive.get(toLoad.value.layer, TileGrid
+							.gridZoom(toLoad.value.zoom), toLoad.value.column,
+							toLoad.value.row);
+				}
+				boolean stored = data != null;
+				if (!stored) {
+					data = download(url);
+				}
 
-				if (toLoad != null) {
+				image = BitmapFactory.decodeByteArray(data, 0, data.length,
+						BitmapPool.getShared().decodeOptions(
+								toLoad.value.opaque));
 
-					try {
-						url = new URL((String) toLoad.value);
+				if (image == null) {
+					throw new NullPointerException("Image " + url);
+				}
 
-						image = BitmapFactory.decodeStream(url.openStream());
+				if (!stored && diskCache != null) {
+					diskCache.put(url, data);
+				}
 
-						if (image == null) {
-							throw new NullPointerException("Image " + url);
-						}
+				if (toLoad.value.columns == 0) {
+					WMSLoader.this.wmsParts.put(toLoad.value.layer, toLoad.key
+							.longValue(), toLoad.value.zoom, drawOrder, image);
+				} else {
+					split(image, toLoad.value);
+				}
+				handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
 
-						WMSLoader.this.wmsParts.insertWithoutUpdate(
-								(K) toLoad.key, image);
-						handler.sendEmptyMessage(WMSLoader.LOADSUCCESS);
+			} catch (IOException e) {
+				if (!isCancelled()) {
+					Log.w(DT, "IO Exception while loading: " + url);
+					Log.w(DT, "IOException: " + e.getClass().getName());
+				}
 
-					} catch (IOException e) {
-						Log.w(DT, "IO Exception while loading: " + url);
-						Log.w(DT, "IOException: " + e.getClass().getName());
+				handler.sendEmptyMessage(WMSLoader.LOADFAIL);
 
-						handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			} catch (NullPointerException ex) {
+				Log.w(DT, ex);
+				handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			} catch (OutOfMemoryError e) {
+				/*
+				 * give the cached parts up, not the worker Thread
+				 */
+				Log.w(DT, "Out of memory while loading: " + url);
+				wmsParts.trim(wmsParts.getSize() / 2);
+				BitmapPool.getShared().trim();
+				handler.sendEmptyMessage(WMSLoader.LOADFAIL);
+			} finally {
+				synchronized (running) {
+					running.remove(toLoad.key);
+				}
+				WMSLoader.this.partsToLoad.completeLoading(toLoad.key);
+				handler.sendEmptyMessage(WMSLoader.STOP);
+			}
+		}
 
-					} catch (NullPointerException ex) {
-						Log.w(DT, ex);
-						handler.sendEmptyMessage(WMSLoader.LOADFAIL);
-					} finally {
-						WMSLoader.this.partsToLoad
-								.completeLoading((K) toLoad.key);
+		/**
+		 * Cache all parts of a block from the TileArchive if it contains all
+		 * of them, so the block need not be requested.
+		 * 
+		 * @return true if all parts were cached
+		 */
+		private boolean loadArchived(PartRequest block) {
+			if (archive == null) {
+				return false;
+			}
+			int gridZoom = TileGrid.gridZoom(block.zoom);
+			for (int r = 0; r < block.rows; r++) {
+				for (int c = 0; c < block.columns; c++) {
+					if (!archive.contains(block.layer, gridZoom, block.column
+							+ c, block.row + r)) {
+						return false;
 					}
 				}
+			}
+			for (int r = 0; r < block.rows; r++) {
+				for (int c = 0; c < block.columns; c++) {
+					byte[] data = archive.get(block.layer, gridZoom,
+							block.column + c, block.row + r);
+					Bitmap part = data == null ? null : BitmapFactory
+							.decodeByteArray(data, 0, data.length, BitmapPool
+									.getShared().decodeOptions(block.opaque));
+					if (part == null) {
+						return false;
+					}
+					long key = WMSUtils.partKey(block.zoom, TileGrid.identX(
+							block.zoom, block.column + c), TileGrid.identY(
+							block.zoom, block.row + r));
+					WMSLoader.this.wmsParts.put(block.layer, key, block.zoom,
+							drawOrder, part);
+				}
+			}
+			return true;
+		}
 
+		/**
+		 * Split the image of a block into its parts and cache them. The image
+		 * itself is recycled.
+		 */
+		private void split(Bitmap image, PartRequest block) {
+			int width = image.getWidth() / block.columns;
+			int height = image.getHeight() / block.rows;
+			try {
+				for (int r = 0; r < block.rows; r++) {
+					for (int c = 0; c < block.columns; c++) {
+						Bitmap part = Bitmap.createBitmap(image, c * width, r
+								* height, width, height);
+						long key = WMSUtils.partKey(block.zoom, TileGrid
+								.identX(block.zoom, block.column + c), TileGrid
+								.identY(block.zoom, block.row + r));
+						WMSLoader.this.wmsParts.put(block.layer, key,
+								block.zoom, drawOrder, part);
+					}
+				}
+			} finally {
+				image.recycle();
 			}
-			handler.sendEmptyMessage(WMSLoader.STOP);
 		}
 
+		/**
+		 * Read the whole response of a GetMap request.
+		 */
+		private byte[] download(String url) throws IOException {
+			HttpConnector.Response c = http.get(url, false);
+			synchronized (this) {
+				if (cancelled) {
+					c.disconnect();
+					throw new IOException("Cancelled " + url);
+				}
+				connection = c;
+			}
+			try {
+				return c.readFully();
+			} finally {
+				c.close();
+			}
+		}
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+	}
+
+	/**
+	 * A queued GetMap request.
+	 */
+	private static class PartRequest {
+
+		private String layer;
+		private String url;
+		private int zoom;
+		private boolean opaque;
+
+		/*
+		 * position and size of a block in the TileGrid, columns is 0 for a
+		 * single part
+		 */
+		private boolean inGrid;
+		private int column;
+		private int row;
+		private int columns;
+		private int rows;
+
+		private PartRequest(String layer, String url, int zoom, boolean opaque) {
+			this.layer = layer;
+			this.url = url;
+			this.zoom = zoom;
+			this.opaque = opaque;
+		}
+
+		private PartRequest(String layer, String url, int zoom,
+				boolean opaque, int column, int row, int columns, int rows) {
+			this(layer, url, zoom, opaque);
+			this.inGrid = true;
+			this.column = column;
+			this.row = row;
+			this.columns = columns;
+			this.rows = rows;
+		}
 	}
 }
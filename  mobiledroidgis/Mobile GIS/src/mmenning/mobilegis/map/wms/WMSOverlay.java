@@ -16,14 +16,22 @@
 package mmenning.mobilegis.map.wms;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
+import mmenning.mobilegis.database.DiskTileCache;
+import mmenning.mobilegis.database.TileArchive;
 import mmenning.mobilegis.map.SleepableOverlay;
+import mmenning.mobilegis.util.HttpConnector;
 import mmenning.mobilegis.util.ProgressAnimationManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
@@ -43,7 +51,23 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 	private Paint semitransparent;
 
-	private ArrayList<WMSLoader<String>> loader;
+	/**
+	 * same transparency as semitransparent, but filters scaled Bitmaps
+	 */
+	private Paint scaled;
+
+	/*
+	 * reused to draw scaled parts
+	 */
+	private Rect scaledSrc = new Rect();
+	private Rect scaledDst = new Rect();
+
+	private ArrayList<WMSLoader> loader;
+
+	/**
+	 * getMapBaseURLs of the loaders, in the same order
+	 */
+	private ArrayList<String> baseURLs;
 
 	private static final GeoPoint ORIGIN = new GeoPoint(0, 0);
 
@@ -55,6 +79,62 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 	private InvalidationHandler invalidationHandler;
 
+	/**
+	 * uptime of the last draw in milliseconds
+	 */
+	private long lastDraw;
+
+	private DiskTileCache diskCache;
+
+	private int viewportMargin = WMSUtils.VIEWPORTMargin;
+
+	private boolean prefetching;
+
+	private boolean opaqueBaseLayer;
+
+	private boolean compositing;
+
+	private boolean metaTiling;
+
+	/**
+	 * parts of all layers blended into one Bitmap, by key
+	 */
+	private PriorityMapQueue<PartKey, Bitmap> composites;
+
+	/**
+	 * count of composited parts kept for the current size of the MapView
+	 */
+	private int compositeParts;
+
+	/**
+	 * reused to look up composited parts without allocation
+	 */
+	private PartKey compositeProbe = new PartKey(0);
+
+	/**
+	 * reused to blend the composited parts
+	 */
+	private Canvas compositeCanvas = new Canvas();
+
+	/**
+	 * reused to project the origin
+	 */
+	private Point originPixel = new Point();
+
+	/**
+	 * reused to collect the parts of all layers for one key
+	 */
+	private Bitmap[] layerParts = new Bitmap[0];
+
+	/*
+	 * center part of the last draw and the last direction of movement, to
+	 * cancel prefetches if the direction changes
+	 */
+	private int lastCenterX;
+	private int lastCenterY;
+	private int lastDirectionX;
+	private int lastDirectionY;
+
 	/**
 	 * Instanciate a new WMSOverlay.
 	 * 
@@ -64,33 +144,143 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	 *            father of this overlay
 	 */
 	public WMSOverlay(ProgressAnimationManager loadManager, MapView map) {
-		this.loader = new ArrayList<WMSLoader<String>>();
+		this.loader = new ArrayList<WMSLoader>();
+		this.baseURLs = new ArrayList<String>();
 		this.loadManager = loadManager;
 		this.map = map;
 		this.semitransparent = new Paint();
+		this.scaled = new Paint(Paint.FILTER_BITMAP_FLAG);
 		this.invalidationHandler = new InvalidationHandler();
+		this.diskCache = DiskTileCache.getShared(map.getContext());
+		/*
+		 * sized to the viewport by draw()
+		 */
+		this.composites = new PriorityMapQueue<PartKey, Bitmap>(0, 0) {
+			@Override
+			protected void removed(PartKey key, Bitmap value) {
+				BitmapPool.getShared().release(value);
+			}
+		};
 	}
 
 	/**
 	 * Add a new baseURL to load parts from. The first added WMS fill be
-	 * displayed on the bottom.
+	 * displayed on the bottom. If the baseURL only differs in its layers from
+	 * the one added before, both will be loaded with one request.
 	 * 
 	 * @param getMapBaseURL
 	 *            {@link WMSUtils.getMapBaseURL}
 	 */
 	public void addLoader(String getMapBaseURL) {
-		this.loader.add(new WMSLoader<String>(getMapBaseURL,
-				invalidationHandler));
+		if (WMSUtils.MERGERequests && !loader.isEmpty()) {
+			int last = loader.size() - 1;
+			String merged = WMSUtils.mergeGetMapBaseURLs(baseURLs.get(last),
+					getMapBaseURL);
+			if (merged != null) {
+				loader.remove(last).release();
+				baseURLs.remove(last);
+				getMapBaseURL = merged;
+			}
+		}
+		WMSLoader l = createLoader(getMapBaseURL);
+		l.setDrawOrder(loader.size());
+		l.setOpaque(opaqueBaseLayer && loader.isEmpty());
+		this.loader.add(l);
+		this.baseURLs.add(getMapBaseURL);
+		composites.clear();
+	}
+
+	/**
+	 * Replace all baseURLs by the given ones, as if they were added by
+	 * addLoader() after clear(). Loaders whose baseURL is still used are kept
+	 * with their queued and running requests, so nothing changes if the
+	 * baseURLs are the same as before.
+	 * 
+	 * @param getMapBaseURLs
+	 *            {@link WMSUtils.getMapBaseURL}, the lowest first
+	 * @return true if the displayed baseURLs changed
+	 */
+	public boolean setLoaders(List<String> getMapBaseURLs) {
+		ArrayList<String> urls = new ArrayList<String>(getMapBaseURLs.size());
+		for (String url : getMapBaseURLs) {
+			int last = urls.size() - 1;
+			if (WMSUtils.MERGERequests && last >= 0) {
+				String merged = WMSUtils.mergeGetMapBaseURLs(urls.get(last),
+						url);
+				if (merged != null) {
+					urls.set(last, merged);
+					continue;
+				}
+			}
+			urls.add(url);
+		}
+		if (urls.equals(baseURLs)) {
+			return false;
+		}
+
+		HashMap<String, WMSLoader> previous =
+				new HashMap<String, WMSLoader>();
+		for (int i = 0; i < loader.size(); i++) {
+			WMSLoader duplicate = previous.put(baseURLs.get(i), loader
+					.get(i));
+			if (duplicate != null) {
+				duplicate.release();
+			}
+		}
+		ArrayList<WMSLoader> loaders = new ArrayList<WMSLoader>(
+				urls.size());
+		for (int i = 0; i < urls.size(); i++) {
+			WMSLoader l = previous.remove(urls.get(i));
+			if (l == null) {
+				l = createLoader(urls.get(i));
+			}
+			l.setDrawOrder(i);
+			l.setOpaque(opaqueBaseLayer && i == 0);
+			loaders.add(l);
+		}
+		for (WMSLoader l : previous.values()) {
+			l.release();
+		}
+		this.loader = loaders;
+		this.baseURLs = urls;
+		composites.clear();
+		return true;
+	}
+
+	private WMSLoader createLoader(String getMapBaseURL) {
+		WMSLoader l = new WMSLoader(getMapBaseURL, invalidationHandler,
+				TileFetchExecutor.getShared(), TileCache.getShared(),
+				diskCache, HttpConnector.getShared(map.getContext()));
+		l.setArchive(TileArchive.getShared(map.getContext()));
+		if (metaTiling) {
+			l.setMetaTiles(WMSUtils.METATILEColumns, WMSUtils.METATILERows);
+		}
+		return l;
+	}
+
+	/**
+	 * @return BaseURLs of the GetMap requests of all layers, the lowest first.
+	 *         They may differ from the added ones if requests are merged or
+	 *         the base layer is opaque.
+	 */
+	public List<String> getGetMapBaseURLs() {
+		ArrayList<String> ret = new ArrayList<String>(loader.size());
+		for (int i = 0; i < loader.size(); i++) {
+			ret.add(loader.get(i).getGetMapBaseURL());
+		}
+		return ret;
 	}
 
 	/**
 	 * Remove all previously added baseURLS
 	 */
 	public void clear() {
-		for (WMSLoader<String> l : loader) {
-			l.stopLoading();
+		for (WMSLoader l : loader) {
+			l.release();
 		}
 		loader.clear();
+		baseURLs.clear();
+		composites.clear();
 	}
 
 	/**
@@ -102,18 +292,29 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		if (sleeps)
 			return;
 
+		/*
+		 * Bitmaps removed from the cache while the last frame was drawn may
+		 * be reused now
+		 */
+		BitmapPool.getShared().onFrame();
+		lastDraw = SystemClock.uptimeMillis();
+
 		if (this.previousZoomLevel != mapView.getZoomLevel()) {
 			this.stopLoading();
 			this.previousZoomLevel = mapView.getZoomLevel();
+			TileCache.getShared().setCurrentZoom(previousZoomLevel);
+			lastDirectionX = 0;
+			lastDirectionY = 0;
 		}
 
 		final Projection p = mapView.getProjection();
 
 		/*
-		 * calculate distance to last center
+		 * calculate distance of the origin to the top left corner
 		 */
-		final int[] dist = WMSUtils.pixelDistance(ORIGIN, p.fromPixels(mapView
-				.getLeft(), mapView.getTop()), p);
+		p.toPixels(ORIGIN, originPixel);
+		final int distX = originPixel.x - mapView.getLeft();
+		final int distY = originPixel.y - mapView.getTop();
 
 		/*
 		 * so much parts we will need to load
@@ -121,13 +322,24 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		final int partsX = (mapView.getWidth() / WMSUtils.WIDTH) + 1;
 		final int partsY = (mapView.getHeight() / WMSUtils.HEIGHT) + 1;
 
+		/*
+		 * keep the composited parts of some screens, so panning back and
+		 * forth does not blend them again
+		 */
+		final int parts = (partsX + 1) * (partsY + 1)
+				* WMSUtils.COMPOSITEScreens;
+		if (parts != compositeParts) {
+			compositeParts = parts;
+			composites.setMaxSize(parts, parts + parts / 3);
+		}
+
 		/*
 		 * coordinates of the first part in ScreenPixels
 		 */
-		final int startX = (Math.abs(dist[WMSUtils.X]) % WMSUtils.WIDTH)
-				* (dist[WMSUtils.X] < 0 ? (-1) : 1) - WMSUtils.WIDTH;
-		final int startY = (Math.abs(dist[WMSUtils.Y]) % WMSUtils.HEIGHT)
-				* (dist[WMSUtils.Y] < 0 ? (-1) : 1) - WMSUtils.HEIGHT;
+		final int startX = (Math.abs(distX) % WMSUtils.WIDTH)
+				* (distX < 0 ? (-1) : 1) - WMSUtils.WIDTH;
+		final int startY = (Math.abs(distY) % WMSUtils.HEIGHT)
+				* (distY < 0 ? (-1) : 1) - WMSUtils.HEIGHT;
 
 		/*
 		 * coordinates of the last part in ScreenPixels
@@ -138,12 +350,30 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		/*
 		 * identifier for the first part
 		 */
-		final int startIdentX = (dist[WMSUtils.X] * -1) / WMSUtils.WIDTH - 1;
-		final int startIdentY = dist[WMSUtils.Y] / WMSUtils.HEIGHT + 1;
+		final int startIdentX = (distX * -1) / WMSUtils.WIDTH - 1;
+		final int startIdentY = distY / WMSUtils.HEIGHT + 1;
+
+		/*
+		 * let the loaders drop parts which are no longer seen and load the
+		 * center first
+		 */
+		final int centerIdentX = startIdentX + partsX / 2;
+		final int centerIdentY = startIdentY - partsY / 2;
+		for (int i = 0; i < loader.size(); i++) {
+			loader.get(i).setViewport(previousZoomLevel, centerIdentX,
+					centerIdentY, partsX / 2 + 1 + viewportMargin, partsY / 2
+							+ 1 + viewportMargin);
+		}
+		trackDirection(centerIdentX, centerIdentY);
 
 		Bitmap map;
 
-		String key;
+		long key;
+
+		final boolean composite = compositing && loader.size() > 1;
+		if (layerParts.length != loader.size()) {
+			layerParts = new Bitmap[loader.size()];
+		}
 
 //		 int k = 0;
 
@@ -177,18 +407,49 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 				/*
 				 * key to identify the part for a wmsLoader definite
 				 */
-				key = mapView.getZoomLevel() + "," + identX + "," + identY;
+				key = WMSUtils.partKey(previousZoomLevel, identX, identY);
+
+				/*
+				 * the composited part already contains every layer
+				 */
+				if (composite) {
+					compositeProbe.value = key;
+					map = composites.getWithUpdate(compositeProbe);
+					if (map != null) {
+						canvas.drawBitmap(map, x, y, null);
+						continue;
+					}
+				}
 
 				/*
 				 * Load part from every WMSLoader.
 				 */
+				boolean complete = true;
+				for (int i = 0; i < layerParts.length; i++) {
+					map = loader.get(i).loadMap(key, previousZoomLevel, identX,
+							identY, x, y, p);
+					layerParts[i] = map;
+					complete &= map != null;
+				}
 
-				for (WMSLoader<String> l : loader) {
-					map = l.loadMap(key, x, y, p);
-					if (map != null) {
-						canvas.drawBitmap(map, x, y, semitransparent);
+				if (composite && complete) {
+					map = composite(layerParts);
+					composites.insertWithoutUpdate(new PartKey(key), map);
+					canvas.drawBitmap(map, x, y, null);
+				} else {
+					for (int i = 0; i < layerParts.length; i++) {
+						if (layerParts[i] != null) {
+							canvas.drawBitmap(layerParts[i], x, y,
+									semitransparent);
+						} else if (WMSUtils.ZOOMFallback) {
+							drawFallback(canvas, loader.get(i),
+									previousZoomLevel, identX, identY, x, y);
+						}
 					}
 				}
+				for (int i = 0; i < layerParts.length; i++) {
+					layerParts[i] = null;
+				}
 
 				
 				//DEBUG KEY	
@@ -209,6 +470,13 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 
 			}
 		}
+
+		if (prefetching) {
+			prefetch(p, startIdentX, startIdentY, partsX, partsY, startX
+					- startIdentX * WMSUtils.WIDTH, startY + startIdentY
+					* WMSUtils.HEIGHT, centerIdentX, centerIdentY);
+		}
+
 		/*
 		 * DEBUG information
 		 */
@@ -221,11 +489,288 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		 */
 	}
 
+	/**
+	 * Draw a missing part of a layer scaled from its cached parts of the
+	 * neighbouring zoom levels: the quarter of the part at zoom - 1 containing
+	 * it, else those of the four parts at zoom + 1 it contains. Nothing will be
+	 * loaded for this. The missing part itself is still requested by loadMap()
+	 * and is drawn instead of the fallback as soon as it is cached.
+	 * 
+	 * @return true if anything was drawn
+	 */
+	private boolean drawFallback(Canvas canvas, WMSLoader l,
+			int zoom, int identX, int identY, int x, int y) {
+		int parentX = floorHalf(identX);
+		int parentY = -floorHalf(-identY);
+		Bitmap part = l.getCached(WMSUtils.partKey(zoom - 1, parentX,
+				parentY));
+		if (part != null) {
+			int left = (identX - 2 * parentX) * WMSUtils.HALFWIDTH;
+			int top = (2 * parentY - identY) * WMSUtils.HALFHEIGHT;
+			scaledSrc.set(left, top, left + WMSUtils.HALFWIDTH, top
+					+ WMSUtils.HALFHEIGHT);
+			scaledDst.set(x, y, x + WMSUtils.WIDTH, y + WMSUtils.HEIGHT);
+			canvas.drawBitmap(part, scaledSrc, scaledDst, scaled);
+			return true;
+		}
+
+		boolean drawn = false;
+		for (int dy = 0; dy < 2; dy++) {
+			for (int dx = 0; dx < 2; dx++) {
+				part = l.getCached(WMSUtils.partKey(zoom + 1, 2 * identX + dx,
+						2 * identY - dy));
+				if (part != null) {
+					int left = x + dx * WMSUtils.HALFWIDTH;
+					int top = y + dy * WMSUtils.HALFHEIGHT;
+					scaledDst.set(left, top, left + WMSUtils.HALFWIDTH, top
+							+ WMSUtils.HALFHEIGHT);
+					canvas.drawBitmap(part, null, scaledDst, scaled);
+					drawn = true;
+				}
+			}
+		}
+		return drawn;
+	}
+
+	/**
+	 * Blend the parts of all layers into one Bitmap with the current
+	 * transparency. Drawing it without transparency gives the same result as
+	 * drawing the parts one by one.
+	 */
+	private Bitmap composite(Bitmap[] parts) {
+		Bitmap ret = BitmapPool.getShared().obtain(WMSUtils.WIDTH,
+				WMSUtils.HEIGHT, Bitmap.Config.ARGB_8888);
+		compositeCanvas.setBitmap(ret);
+		for (int i = 0; i < parts.length; i++) {
+			compositeCanvas.drawBitmap(parts[i], 0, 0, semitransparent);
+		}
+		return ret;
+	}
+
+	/**
+	 * Enable or disable compositing. If enabled, the parts of all layers will
+	 * be blended into one Bitmap as soon as all of them are loaded, so every
+	 * part is drawn only once however many layers are displayed.
+	 * 
+	 * @param compositing
+	 */
+	public void setCompositing(boolean compositing) {
+		this.compositing = compositing;
+		if (!compositing) {
+			composites.clear();
+		}
+	}
+
+	/**
+	 * Enable or disable metatiling. If enabled, the parts in the TileGrid will
+	 * be requested in blocks of WMSUtils.METATILEColumns x
+	 * WMSUtils.METATILERows parts.
+	 * 
+	 * @param metaTiling
+	 */
+	public void setMetaTiling(boolean metaTiling) {
+		this.metaTiling = metaTiling;
+		for (int i = 0; i < loader.size(); i++) {
+			if (metaTiling) {
+				loader.get(i).setMetaTiles(WMSUtils.METATILEColumns,
+						WMSUtils.METATILERows);
+			} else {
+				loader.get(i).setMetaTiles(1, 1);
+			}
+		}
+	}
+
+	/**
+	 * Set how many parts beyond the visible ones may still be loaded. Parts
+	 * further away will be dropped from the loading queues.
+	 * 
+	 * @param margin
+	 *            count of parts in every direction
+	 */
+	public void setViewportMargin(int margin) {
+		this.viewportMargin = margin;
+	}
+
+	/**
+	 * Draw the lowest layer without transparency. Its parts will be requested
+	 * opaque and decoded in RGB_565, which needs half of the memory.
+	 * 
+	 * @param opaqueBaseLayer
+	 */
+	public void setOpaqueBaseLayer(boolean opaqueBaseLayer) {
+		if (this.opaqueBaseLayer == opaqueBaseLayer) {
+			return;
+		}
+		this.opaqueBaseLayer = opaqueBaseLayer;
+		if (!loader.isEmpty()) {
+			loader.get(0).setOpaque(opaqueBaseLayer);
+		}
+		composites.clear();
+	}
+
+	/**
+	 * Enable or disable prefetching. If enabled, a ring of parts around the
+	 * visible ones and the parts of the neighbouring zoom levels around the
+	 * center will be loaded while there is nothing else to load.
+	 * 
+	 * @param prefetching
+	 */
+	public void setPrefetching(boolean prefetching) {
+		this.prefetching = prefetching;
+		if (!prefetching) {
+			for (WMSLoader l : loader) {
+				l.cancelPrefetches();
+			}
+		}
+	}
+
+	/**
+	 * Cancel all prefetches if the direction of movement changed.
+	 */
+	private void trackDirection(int centerX, int centerY) {
+		int directionX = Integer.signum(centerX - lastCenterX);
+		int directionY = Integer.signum(centerY - lastCenterY);
+		boolean turned = (directionX != 0 && lastDirectionX != 0
+				&& directionX != lastDirectionX)
+				|| (directionY != 0 && lastDirectionY != 0
+				&& directionY != lastDirectionY);
+		if (directionX != 0) {
+			lastDirectionX = directionX;
+		}
+		if (directionY != 0) {
+			lastDirectionY = directionY;
+		}
+		lastCenterX = centerX;
+		lastCenterY = centerY;
+		if (turned) {
+			for (WMSLoader l : loader) {
+				l.cancelPrefetches();
+			}
+		}
+	}
+
+	/**
+	 * Queue prefetches if all loaders are idle: first the ring around the
+	 * visible parts, then the part of the upper zoom level containing the
+	 * center and the parts of the lower zoom level it contains. The count of
+	 * prefetched parts is bounded by the budget of the TileCache.
+	 * 
+	 * @param p
+	 *            current Projection
+	 * @param startIdentX
+	 *            identifier of the left visible parts
+	 * @param startIdentY
+	 *            identifier of the top visible parts
+	 * @param partsX
+	 *            horizontal count of visible parts - 1
+	 * @param partsY
+	 *            vertical count of visible parts - 1
+	 * @param originX
+	 *            horizontal screen position of the part 0,0
+	 * @param originY
+	 *            vertical screen position of the part 0,0
+	 * @param centerX
+	 *            identifier of the center part
+	 * @param centerY
+	 *            identifier of the center part
+	 */
+	private void prefetch(Projection p, int startIdentX, int startIdentY,
+			int partsX, int partsY, int originX, int originY, int centerX,
+			int centerY) {
+		if (loader.isEmpty() || !TileFetchExecutor.getShared().isIdle()) {
+			return;
+		}
+		for (int i = 0; i < loader.size(); i++) {
+			if (!loader.get(i).isIdle()) {
+				return;
+			}
+		}
+
+		int remaining = (int) (TileCache.getShared().getBudget()
+				/ WMSUtils.PREFETCHBudgetDivisor / (WMSUtils.WIDTH
+				* WMSUtils.HEIGHT * 4))
+				/ loader.size();
+
+		final int zoom = previousZoomLevel;
+		final int minX = startIdentX;
+		final int maxX = startIdentX + partsX;
+		final int minY = startIdentY - partsY;
+		final int maxY = startIdentY;
+
+		/*
+		 * rings around the visible parts, nearest first
+		 */
+		for (int r = 1; r <= WMSUtils.PREFETCHRing; r++) {
+			for (int identY = maxY + r; identY >= minY - r; identY--) {
+				for (int identX = minX - r; identX <= maxX + r; identX++) {
+					if (identX != minX - r && identX != maxX + r
+							&& identY != minY - r && identY != maxY + r) {
+						continue;
+					}
+					if (remaining-- <= 0) {
+						return;
+					}
+					prefetchPart(p, zoom, identX, identY, originX
+							+ identX * WMSUtils.WIDTH, originY - identY
+							* WMSUtils.HEIGHT, WMSUtils.WIDTH,
+							WMSUtils.HEIGHT);
+				}
+			}
+		}
+
+		/*
+		 * the part of the upper zoom level is twice as big, its grid is
+		 * scaled around the same origin
+		 */
+		if (zoom > 1 && remaining-- > 0) {
+			int parentX = floorHalf(centerX);
+			int parentY = -floorHalf(-centerY);
+			prefetchPart(p, zoom - 1, parentX, parentY, originX + parentX
+					* 2 * WMSUtils.WIDTH, originY - parentY * 2
+					* WMSUtils.HEIGHT, 2 * WMSUtils.WIDTH,
+					2 * WMSUtils.HEIGHT);
+		}
+
+		/*
+		 * the four parts of the lower zoom level are half as big
+		 */
+		for (int childY = 2 * centerY; childY >= 2 * centerY - 1; childY--) {
+			for (int childX = 2 * centerX; childX <= 2 * centerX + 1; childX++) {
+				if (remaining-- <= 0) {
+					return;
+				}
+				prefetchPart(p, zoom + 1, childX, childY, originX + childX
+						* WMSUtils.HALFWIDTH, originY - childY
+						* WMSUtils.HALFHEIGHT, WMSUtils.HALFWIDTH,
+						WMSUtils.HALFHEIGHT);
+			}
+		}
+	}
+
+	private void prefetchPart(Projection p, int zoom, int identX, int identY,
+			int left, int top, int width, int height) {
+		long key = WMSUtils.partKey(zoom, identX, identY);
+		for (int i = 0; i < loader.size(); i++) {
+			loader.get(i).prefetch(key, zoom, identX, identY, left, top,
+					width, height, p);
+		}
+	}
+
+	/**
+	 * floor(i / 2) also for negative i
+	 */
+	private static int floorHalf(int i) {
+		return i >> 1;
+	}
+
 	/**
 	 * Should be called if the Overlay is no longer visible.
 	 */
 	public void onPause() {
 		stopLoading();
+		diskCache.flush();
+		TileArchive.getShared(map.getContext()).flush();
+		HttpConnector.getShared(map.getContext()).flush();
 	}
 
 	/**
@@ -235,23 +780,30 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 	 *            alpha value [0..255]
 	 */
 	public void setTransparency(int transparency) {
+		if (semitransparent.getAlpha() != transparency) {
+			composites.clear();
+		}
 		semitransparent.setAlpha(transparency);
+		scaled.setAlpha(transparency);
 	}
 
 	private void stopLoading() {
-		for (WMSLoader<String> l : loader) {
+		for (WMSLoader l : loader) {
 			l.stopLoading();
 		}
 	}
 
 	/**
-	 * Handler to handle Threads of the WMSLoader
+	 * Handler to handle Loading Tasks of the WMSLoader. Loaded parts cause at
+	 * most one redraw per WMSUtils.INVALIDATIONInterval.
 	 * 
 	 * @author Mathias Menninghaus
 	 * 
 	 */
 	private class InvalidationHandler extends Handler {
 
+		private static final int INVALIDATE = -1;
+
 		@Override
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
@@ -260,6 +812,13 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 				break;
 			case WMSLoader.LOADSUCCESS:
 				// loadManager.stop();
+				if (!hasMessages(INVALIDATE)) {
+					sendEmptyMessageAtTime(INVALIDATE, Math.max(lastDraw
+							+ WMSUtils.INVALIDATIONInterval, SystemClock
+							.uptimeMillis()));
+				}
+				break;
+			case INVALIDATE:
 				WMSOverlay.this.map.invalidate();
 				break;
 			case WMSLoader.LOADFAIL:
@@ -286,4 +845,25 @@ public class WMSOverlay extends Overlay implements SleepableOverlay {
 		sleeps = false;
 	}
 
+	/**
+	 * Key of a composited part, mutable to look up parts without allocation.
+	 */
+	private static class PartKey {
+
+		private long value;
+
+		private PartKey(long value) {
+			this.value = value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (value ^ (value >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof PartKey && ((PartKey) o).value == value;
+		}
+	}
 }
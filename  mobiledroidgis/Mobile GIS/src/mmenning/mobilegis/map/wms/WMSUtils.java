@@ -81,19 +81,119 @@ public class WMSUtils {
 	public static final String ENCODING = "ISO-8859-1";
 
 	/**
-	 * Maximum of used Threads in a WMSLoader
+	 * Count of worker Threads in the TileFetchExecutor shared by all
+	 * WMSLoaders
 	 */
-	public static final int MAXTHREADSPerLoader = 2;
+	public static final int FETCHThreads = 4;
 
 	/**
-	 * Maximum cached Bitmaps in a WMSLoader
+	 * Maximum of parallel requests against the same WMS host
 	 */
-	public static final int MAXStoredBitmapsPerLoader = 60;
+	public static final int MAXConnectionsPerHost = 2;
 
 	/**
-	 * Goal for cache size after cleaning up the Cache in a WMSLoader
+	 * Request the parts in the fixed {@link TileGrid} if their SRS is
+	 * supported, else calculate the BoundingBoxes with the map's Projection
 	 */
-	public static final int AVERAGEStoredBitmapsPerLoader = 40;
+	public static final boolean TILEMATRIX = true;
+
+	/**
+	 * Merge the GetMap requests of WMS which are displayed next to each other
+	 * and share endpoint, SRS and format into one request
+	 */
+	public static final boolean MERGERequests = true;
+
+	/**
+	 * Draw missing parts scaled from the cached parts of the neighbouring zoom
+	 * levels until they are loaded
+	 */
+	public static final boolean ZOOMFallback = true;
+
+	/**
+	 * Columns of the blocks of parts requested at once if metatiling is
+	 * enabled
+	 */
+	public static final int METATILEColumns = 3;
+
+	/**
+	 * Rows of the blocks of parts requested at once if metatiling is enabled
+	 */
+	public static final int METATILERows = 3;
+
+	/**
+	 * Count of parts beyond the visible ones in every direction which will
+	 * still be loaded, parts further away are dropped from the loading queues
+	 */
+	public static final int VIEWPORTMargin = 1;
+
+	/**
+	 * Width of the ring of parts around the visible ones which will be
+	 * prefetched
+	 */
+	public static final int PREFETCHRing = 1;
+
+	/**
+	 * Prefetched parts may use the budget of the shared TileCache divided by
+	 * this
+	 */
+	public static final int PREFETCHBudgetDivisor = 4;
+
+	/**
+	 * The shared TileCache may use the maximum heap size divided by this for
+	 * its Bitmaps
+	 */
+	public static final int TILECACHEHeapDivisor = 4;
+
+	/**
+	 * Count of screens of composited parts the WMSOverlay keeps after cleaning
+	 * up, one screen being the visible parts plus a border of one part
+	 */
+	public static final int COMPOSITEScreens = 2;
+
+	/**
+	 * Minimum milliseconds between two redraws caused by loaded parts, parts
+	 * loaded in between are displayed together
+	 */
+	public static final int INVALIDATIONInterval = 40;
+
+	/**
+	 * Minimum milliseconds between two requests of the AreaDownloader, so the
+	 * WMS are not flooded by offline downloads
+	 */
+	public static final int OFFLINERequestInterval = 250;
+
+	/**
+	 * Maximum count of parts of a region downloaded for offline use
+	 */
+	public static final int OFFLINEMaxParts = 20000;
+
+	/**
+	 * Count of zoom levels above the current one which are downloaded for
+	 * offline use
+	 */
+	public static final int OFFLINEZoomLevels = 3;
+
+	/**
+	 * Estimated bytes of a part if no part is stored yet
+	 */
+	public static final int OFFLINEPartBytes = 16 * 1024;
+
+	/**
+	 * Pack the position of a part into one key, 8 bits for the zoom level and
+	 * 28 bits for each identifier.
+	 * 
+	 * @param zoom
+	 *            zoom level
+	 * @param identX
+	 *            horizontal identifier used by the WMSOverlay
+	 * @param identY
+	 *            vertical identifier used by the WMSOverlay
+	 * @return key of the part
+	 */
+	public static long partKey(int zoom, int identX, int identY) {
+		return ((long) zoom << 56) | ((identX & 0xFFFFFFFL) << 28)
+				| (identY & 0xFFFFFFFL);
+	}
 
 	private static String setLastSignMark(String s) {
 		if (s == null)
@@ -178,6 +278,118 @@ public class WMSUtils {
 				+ "," + longitude(ur) + "," + latitude(ur);
 	}
 
+	/**
+	 * Generate an URL for a GetMap request of a part in the fixed
+	 * {@link TileGrid}. The same part will always result in the same URL.
+	 * 
+	 * @param getMapBaseURL
+	 *            base GetMap request without Bounding Box
+	 * @param srs
+	 *            SRS of the request, must be supported by the TileGrid
+	 * @param zoom
+	 *            zoom level of the part
+	 * @param identX
+	 *            horizontal identifier of the part used by the WMSOverlay
+	 * @param identY
+	 *            vertical identifier of the part used by the WMSOverlay
+	 * @return the complete GetMapURL to start a GetMAp request.
+	 */
+	public static String generateGetMapURL(String getMapBaseURL, String srs,
+			int zoom, int identX, int identY) {
+		StringBuffer buf = new StringBuffer(getMapBaseURL.length() + 64);
+		buf.append(getMapBaseURL);
+		buf.append("&BBOX=");
+		TileGrid.appendBBOX(buf, srs, zoom, TileGrid.column(zoom, identX),
+				TileGrid.row(zoom, identY));
+		return buf.toString();
+	}
+
+	/**
+	 * Generate an URL for a GetMap request of a block of parts in the fixed
+	 * {@link TileGrid}, which is answered with one image of all parts.
+	 * 
+	 * @param getMapBaseURL
+	 *            base GetMap request without Bounding Box
+	 * @param srs
+	 *            SRS of the request, must be supported by the TileGrid
+	 * @param zoom
+	 *            zoom level of the parts
+	 * @param column
+	 *            left column of the block in the tile matrix
+	 * @param row
+	 *            top row of the block in the tile matrix
+	 * @param columns
+	 *            count of columns of the block
+	 * @param rows
+	 *            count of rows of the block
+	 * @return the complete GetMapURL or null if the size of the image can not
+	 *         be set in the getMapBaseURL
+	 */
+	public static String generateGetMapBlockURL(String getMapBaseURL,
+			String srs, int zoom, int column, int row, int columns, int rows) {
+		String size = "&WIDTH=" + WIDTH + "&HEIGHT=" + HEIGHT;
+		int index = getMapBaseURL.indexOf(size);
+		if (index < 0) {
+			return null;
+		}
+		StringBuffer buf = new StringBuffer(getMapBaseURL.length() + 64);
+		buf.append(getMapBaseURL, 0, index);
+		buf.append("&WIDTH=").append(WIDTH * columns);
+		buf.append("&HEIGHT=").append(HEIGHT * rows);
+		buf.append(getMapBaseURL, index + size.length(), getMapBaseURL
+				.length());
+		buf.append("&BBOX=");
+		TileGrid.appendBBOX(buf, srs, zoom, column, row, columns, rows);
+		return buf.toString();
+	}
+
+	/**
+	 * Merge two GetMap base URLs into one if they only differ in their
+	 * layers. The layers of the upper URL will be drawn above the layers of the
+	 * lower one.
+	 * 
+	 * @param lower
+	 *            {@link #generateGetMapBaseURL(String, String[], String)}
+	 * @param upper
+	 *            {@link #generateGetMapBaseURL(String, String[], String)}
+	 * @return the merged getMapBaseURL or null if endpoint, SRS, format or
+	 *         any other parameter differ
+	 */
+	public static String mergeGetMapBaseURLs(String lower, String upper) {
+		int lowerLayers = lower.lastIndexOf("&LAYERS=");
+		int upperLayers = upper.lastIndexOf("&LAYERS=");
+		if (lowerLayers < 0 || lowerLayers != upperLayers
+				|| !lower.regionMatches(0, upper, 0, lowerLayers)) {
+			return null;
+		}
+		String layers = upper.substring(upperLayers + "&LAYERS=".length());
+		if (layers.length() == 0) {
+			return lower;
+		}
+		if (lower.length() == lowerLayers + "&LAYERS=".length()) {
+			return upper;
+		}
+		return lower + "," + layers;
+	}
+
+	/**
+	 * Extract the value of the SRS parameter of a GetMap URL.
+	 * 
+	 * @param getMapBaseURL
+	 *            {@link #generateGetMapBaseURL(String, String[], String)}
+	 * @return the SRS or null if there is no SRS parameter
+	 */
+	public static String getSRS(String getMapBaseURL) {
+		int start = getMapBaseURL.indexOf("&SRS=");
+		if (start < 0) {
+			return null;
+		}
+		start += "&SRS=".length();
+		int end = getMapBaseURL.indexOf('&', start);
+		return end < 0 ? getMapBaseURL.substring(start) : getMapBaseURL
+				.substring(start, end);
+	}
+
 	/**
 	 * Calculates the BoundingBox for the given top-left screen coordinate and
 	 * the given Projection. The BoundingBox will have WIDTH and HEIGHT in
@@ -192,9 +404,31 @@ public class WMSUtils {
 	 * @return a GeoPoint[] with entries LOWERLEFT and UPPERRIGHT
 	 */
 	public static GeoPoint[] corners(int left, int top, Projection p) {
+		return corners(left, top, WIDTH, HEIGHT, p);
+	}
+
+	/**
+	 * Calculates the BoundingBox for the given top-left screen coordinate, the
+	 * given size in screen pixels and the given Projection. Used for parts of
+	 * other zoom levels than the displayed one.
+	 * 
+	 * @param left
+	 *            left border in screen pixels
+	 * @param top
+	 *            top border in screen pixels
+	 * @param width
+	 *            width in screen pixels
+	 * @param height
+	 *            height in screen pixels
+	 * @param p
+	 *            Projection to Project from ScreenPixels in GeoPoints
+	 * @return a GeoPoint[] with entries LOWERLEFT and UPPERRIGHT
+	 */
+	public static GeoPoint[] corners(int left, int top, int width,
+			int height, Projection p) {
 		GeoPoint[] ret = new GeoPoint[2];
-		ret[LOWERLEFT] = p.fromPixels(left, top + HEIGHT);
-		ret[UPPERRIGHT] = p.fromPixels(left + WIDTH, top);
+		ret[LOWERLEFT] = p.fromPixels(left, top + height);
+		ret[UPPERRIGHT] = p.fromPixels(left + width, top);
 		return ret;
 	}
 
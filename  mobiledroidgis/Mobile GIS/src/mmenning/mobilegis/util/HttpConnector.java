@@ -0,0 +1,438 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Opens the HTTP connections of the whole application. Every request gets the
+ * same connect and read timeouts and accepts gzip encoded responses.
+ * Connections are kept alive, so they will be reused if the response was read
+ * completely and closed.
+ *
+ * GET requests may be conditional: the ETag and Last-Modified validators of
+ * every committed response are stored per URL, and the next request for this
+ * URL sends them. If the resource did not change the server answers with 304
+ * Not Modified and no payload. The validators are stored in the folder
+ * 'application-packagename' on SDCard on flush().
+ */
+public class HttpConnector {
+
+	private static final String DT = "HttpConnector";
+
+	private static final String SDCARD = Environment
+			.getExternalStorageDirectory().getAbsolutePath();
+	private static final String VALIDATORS = "validators";
+	private static final String TEMP = ".tmp";
+
+	private static final int VALIDATORS_VERSION = 1;
+
+	private static final int IO_BUFFER_SIZE = 8192;
+
+	/**
+	 * Default timeout to establish a connection in milliseconds
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+
+	/**
+	 * Default timeout to wait for data in milliseconds
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/**
+	 * Maximum count of idle connections kept alive
+	 */
+	public static final int MAX_CONNECTIONS = 8;
+
+	/**
+	 * Maximum count of URLs whose validators are stored, the least recently
+	 * used ones will be dropped
+	 */
+	public static final int MAX_VALIDATORS = 256;
+
+	private static final int ETAG = 0;
+	private static final int LASTMODIFIED = 1;
+
+	static {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String
+				.valueOf(MAX_CONNECTIONS));
+	}
+
+	private static HttpConnector sharedConnector;
+
+	/**
+	 * Get the HttpConnector shared by the whole application.
+	 *
+	 * @param context
+	 *            Context in which the HttpConnector will work.
+	 * @return the shared HttpConnector
+	 */
+	public static synchronized HttpConnector getShared(Context context) {
+		if (sharedConnector == null) {
+			File dir = new File(SDCARD + File.separator
+					+ context.getPackageName());
+			if (!dir.exists()) {
+				dir.mkdirs();
+			}
+			sharedConnector = new HttpConnector(new File(dir, VALIDATORS));
+		}
+		return sharedConnector;
+	}
+
+	/**
+	 * url -> {ETag, Last-Modified}, in access order
+	 */
+	private LinkedHashMap<String, String[]> validators;
+
+	private File validatorFile;
+
+	private boolean changed;
+
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * Instantiate a new HttpConnector.
+	 *
+	 * @param validatorFile
+	 *            file to store the validators in, null to keep them in memory
+	 *            only
+	 */
+	public HttpConnector(File validatorFile) {
+		this.validators = new LinkedHashMap<String, String[]>(64, 0.75f, true);
+		this.validatorFile = validatorFile;
+		if (validatorFile != null) {
+			readValidators();
+		}
+	}
+
+	/**
+	 * Set the timeouts of all following requests.
+	 *
+	 * @param connectTimeout
+	 *            timeout to establish a connection in milliseconds, 0 for
+	 *            none
+	 * @param readTimeout
+	 *            timeout to wait for data in milliseconds, 0 for none
+	 */
+	public synchronized void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Start a GET request.
+	 *
+	 * @param url
+	 * @param conditional
+	 *            true to send the stored validators of this url, the Response
+	 *            may be not modified then
+	 * @return the Response, which must be closed
+	 * @throws IOException
+	 */
+	public Response get(String url, boolean conditional) throws IOException {
+		HttpURLConnection c = open(url);
+		if (conditional) {
+			String[] v;
+			synchronized (this) {
+				v = validators.get(url);
+			}
+			if (v != null) {
+				if (v[ETAG] != null) {
+					c.setRequestProperty("If-None-Match", v[ETAG]);
+				}
+				if (v[LASTMODIFIED] != null) {
+					c.setRequestProperty("If-Modified-Since", v[LASTMODIFIED]);
+				}
+			}
+		}
+		return new Response(url, c);
+	}
+
+	/**
+	 * Start a POST request.
+	 *
+	 * @param url
+	 * @param body
+	 *            content of the request
+	 * @param contentType
+	 *            MIME type of the content
+	 * @return the Response, which must be closed
+	 * @throws IOException
+	 */
+	public Response post(String url, String body, String contentType)
+			throws IOException {
+		HttpURLConnection c = open(url);
+		c.setDoOutput(true);
+		c.setRequestMethod("POST");
+		c.setRequestProperty("Content-Type", contentType);
+		OutputStreamWriter out = new OutputStreamWriter(c.getOutputStream());
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+		return new Response(null, c);
+	}
+
+	/**
+	 * Forget the validators of an url, so the next request will load the
+	 * whole resource.
+	 *
+	 * @param url
+	 */
+	public synchronized void invalidate(String url) {
+		if (validators.remove(url) != null) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * Write the validators if they changed since they were written the last
+	 * time. Should be called if the application will be paused.
+	 */
+	public synchronized void flush() {
+		if (changed && validatorFile != null) {
+			writeValidators();
+		}
+	}
+
+	private HttpURLConnection open(String url) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL(url)
+				.openConnection();
+		synchronized (this) {
+			c.setConnectTimeout(connectTimeout);
+			c.setReadTimeout(readTimeout);
+		}
+		c.setRequestProperty("Accept-Encoding", "gzip");
+		return c;
+	}
+
+	private synchronized void store(String url, String eTag,
+			String lastModified) {
+		if (eTag == null && lastModified == null) {
+			if (validators.remove(url) != null) {
+				changed = true;
+			}
+			return;
+		}
+		validators.put(url, new String[] { eTag, lastModified });
+		changed = true;
+		Iterator<String> eldest = validators.keySet().iterator();
+		while (validators.size() > MAX_VALIDATORS && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Read the validator file, ignoring it if it is invalid.
+	 */
+	private void readValidators() {
+		if (!validatorFile.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(validatorFile), IO_BUFFER_SIZE));
+			try {
+				if (in.readInt() != VALIDATORS_VERSION) {
+					return;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					String url = in.readUTF();
+					String eTag = in.readBoolean() ? in.readUTF() : null;
+					String lastModified = in.readBoolean() ? in.readUTF()
+							: null;
+					validators.put(url, new String[] { eTag, lastModified });
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			validators.clear();
+		}
+	}
+
+	/**
+	 * Write the validator file, least recently used first.
+	 */
+	private void writeValidators() {
+		File temp = new File(validatorFile.getPath() + TEMP);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp),
+							IO_BUFFER_SIZE));
+			try {
+				out.writeInt(VALIDATORS_VERSION);
+				out.writeInt(validators.size());
+				for (Map.Entry<String, String[]> e : validators.entrySet()) {
+					out.writeUTF(e.getKey());
+					for (String v : e.getValue()) {
+						out.writeBoolean(v != null);
+						if (v != null) {
+							out.writeUTF(v);
+						}
+					}
+				}
+			} finally {
+				out.close();
+			}
+			validatorFile.delete();
+			if (temp.renameTo(validatorFile)) {
+				changed = false;
+			}
+		} catch (IOException e) {
+			Log.w(DT, e);
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Response of a request. Its validators will only be stored on commit(),
+	 * so a response which could not be processed will be loaded again
+	 * completely the next time.
+	 */
+	public class Response {
+
+		private String url;
+
+		private HttpURLConnection connection;
+
+		private InputStream input;
+
+		private Response(String url, HttpURLConnection connection) {
+			this.url = url;
+			this.connection = connection;
+		}
+
+		/**
+		 * @return the HTTP status code
+		 * @throws IOException
+		 */
+		public int getResponseCode() throws IOException {
+			return connection.getResponseCode();
+		}
+
+		/**
+		 * @return true if a conditional request was answered with 304 Not
+		 *         Modified, there is no content then
+		 * @throws IOException
+		 */
+		public boolean isNotModified() throws IOException {
+			return connection.getResponseCode() ==
+				HttpURLConnection.HTTP_NOT_MODIFIED;
+		}
+
+		/**
+		 * @return the content, decompressed if necessary
+		 * @throws IOException
+		 */
+		public synchronized InputStream getInputStream() throws IOException {
+			if (input == null) {
+				input = connection.getInputStream();
+				if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+					input = new GZIPInputStream(input, IO_BUFFER_SIZE);
+				}
+			}
+			return input;
+		}
+
+		/**
+		 * Read the whole content.
+		 *
+		 * @return the content, decompressed if necessary
+		 * @throws IOException
+		 */
+		public byte[] readFully() throws IOException {
+			InputStream in = getInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[IO_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(b)) != -1) {
+				out.write(b, 0, read);
+			}
+			return out.toByteArray();
+		}
+
+		/**
+		 * Store the validators of this Response for the next conditional
+		 * request. Should be called after the content was processed
+		 * successfully.
+		 */
+		public void commit() {
+			if (url == null) {
+				return;
+			}
+			try {
+				if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+					store(url, connection.getHeaderField("ETag"), connection
+							.getHeaderField("Last-Modified"));
+				}
+			} catch (IOException e) {
+				Log.w(DT, e);
+			}
+		}
+
+		/**
+		 * Close the content. The connection will be kept alive if the content
+		 * was read completely.
+		 */
+		public synchronized void close() {
+			try {
+				if (input != null) {
+					input.close();
+				} else if (isNotModified()) {
+					connection.getInputStream().close();
+				}
+			} catch (IOException e) {
+				// nothing to release
+			}
+		}
+
+		/**
+		 * Close the connection, may be called from another Thread to cancel
+		 * the request.
+		 */
+		public void disconnect() {
+			connection.disconnect();
+		}
+	}
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2012 Mathias Menninghaus (mathias.menninghaus (at) googlemail (dot) com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package mmenning.mobilegis.util;
+
+import java.util.TimeZone;
+
+/**
+ * Parses and formats the times of the services, ISO 8601 as used by SOS and
+ * RFC 822 as used by RSS, directly from and to milliseconds since
+ * 1970-01-01T00:00:00Z. Unlike SimpleDateFormat all methods may be called by
+ * several Threads at the same time, and parsing creates no objects if the
+ * characters are given as array.
+ *
+ * Invalid times are parsed to INVALID.
+ */
+public class TimeCodec {
+
+	/**
+	 * Result of parsing an invalid time
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final long MINUTE = 60 * 1000L;
+	private static final long DAY = 24 * 60 * MINUTE;
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr",
+			"May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private static final String[] DAYS = { "Thu", "Fri", "Sat", "Sun", "Mon",
+			"Tue", "Wed" };
+
+	/*
+	 * North American time zones of RFC 822 and their offsets in hours
+	 */
+	private static final String[] ZONES = { "EST", "EDT", "CST", "CDT",
+			"MST", "MDT", "PST", "PDT" };
+	private static final int[] ZONE_OFFSETS = { -5, -4, -6, -5, -7, -6, -8,
+			-7 };
+
+	/**
+	 * reused to parse Strings
+	 */
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[64];
+		}
+	};
+
+	/**
+	 * Parses an ISO 8601 time like 2009-11-11T12:00:00.000+01:00. Seconds,
+	 * fraction and time zone are optional, 'T' may be replaced by a space.
+	 * Times without time zone are local times.
+	 *
+	 * @param s
+	 *            characters containing the time
+	 * @param start
+	 *            index of the first character
+	 * @param end
+	 *            index after the last character
+	 * @return milliseconds since 1970-01-01T00:00:00Z or INVALID
+	 */
+	public static long parseISO8601(char[] s, int start, int end) {
+		int i = start;
+		boolean negativeYear = i < end && s[i] == '-';
+		if (negativeYear) {
+			i++;
+		}
+		int year = digits(s, i, end, 4);
+		if (year < 0 || !is(s, i + 4, end, '-')) {
+			return INVALID;
+		}
+		int month = digits(s, i + 5, end, 2);
+		if (month < 1 || month > 12 || !is(s, i + 7, end, '-')) {
+			return INVALID;
+		}
+		int day = digits(s, i + 8, end, 2);
+		if (day < 1 || day > 31) {
+			return INVALID;
+		}
+		i += 10;
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		int millis = 0;
+		if (i < end && (s[i] == 'T' || s[i] == ' ')) {
+			hour = digits(s, i + 1, end, 2);
+			minute = is(s, i + 3, end, ':') ? digits(s, i + 4, end, 2) : -1;
+			if (hour < 0 || hour > 24 || minute < 0 || minute > 59) {
+				return INVALID;
+			}
+			i += 6;
+			if (is(s, i, end, ':')) {
+				second = digits(s, i + 1, end, 2);
+				if (second < 0 || second > 60) {
+					return INVALID;
+				}
+				i += 3;
+				if (i < end && (s[i] == '.' || s[i] == ',')) {
+					i++;
+					int scale = 100;
+					int first = i;
+					for (; i < end && s[i] >= '0' && s[i] <= '9'; i++) {
+						millis += (s[i] - '0') * scale;
+						scale /= 10;
+					}
+					if (i == first) {
+						return INVALID;
+					}
+				}
+			}
+		}
+
+		long time = daysSinceEpoch(negativeYear ? -year : year, month, day)
+				* DAY + (hour * 60 + minute) * MINUTE + second * 1000L + millis;
+
+		if (i == end) {
+			return time - TimeZone.getDefault().getOffset(time);
+		}
+		if (s[i] == 'Z' && i + 1 == end) {
+			return time;
+		}
+		if (s[i] != '+' && s[i] != '-') {
+			return INVALID;
+		}
+		int sign = s[i] == '-' ? -1 : 1;
+		int offsetHours = digits(s, i + 1, end, 2);
+		int offsetMinutes = 0;
+		i += 3;
+		if (is(s, i, end, ':')) {
+			i++;
+		}
+		if (i < end) {
+			offsetMinutes = digits(s, i, end, 2);
+			i += 2;
+		}
+		if (offsetHours < 0 || offsetMinutes < 0 || i != end) {
+			return INVALID;
+		}
+		return time - sign * (offsetHours * 60 + offsetMinutes) * MINUTE;
+	}
+
+	/**
+	 * @see #parseISO8601(char[], int, int)
+	 * @param s
+	 *            the time, surrounding whitespace is ignored
+	 * @return milliseconds since 1970-01-01T00:00:00Z or INVALID
+	 */
+	public static long parseISO8601(String s) {
+		if (s == null) {
+			return INVALID;
+		}
+		char[] buf = toChars(s);
+		int start = skipWhitespace(buf, 0, s.length());
+		return parseISO8601(buf, start, trimEnd(buf, start, s.length()));
+	}
+
+	/**
+	 * Formats a time as ISO 8601 in UTC, like 2009-11-11T11:00:00Z.
+	 *
+	 * @param time
+	 *            milliseconds since 1970-01-01T00:00:00Z
+	 * @return the formatted time
+	 */
+	public static String formatISO8601(long time) {
+		StringBuffer buf = new StringBuffer(20);
+		appendISO8601(buf, time);
+		return buf.toString();
+	}
+
+	/**
+	 * Appends a time as ISO 8601 in UTC, like 2009-11-11T11:00:00Z.
+	 *
+	 * @param buf
+	 *            to append to
+	 * @param time
+	 *            milliseconds since 1970-01-01T00:00:00Z
+	 */
+	public static void appendISO8601(StringBuffer buf, long time) {
+		long days = floorDiv(time, DAY);
+		int[] date = civil(days);
+		long millisOfDay = time - days * DAY;
+		appendPadded(buf, date[0], 4);
+		buf.append('-');
+		appendPadded(buf, date[1], 2);
+		buf.append('-');
+		appendPadded(buf, date[2], 2);
+		buf.append('T');
+		appendTimeOfDay(buf, millisOfDay);
+		buf.append('Z');
+	}
+
+	/**
+	 * Parses an RFC 822 time like Wed, 11 Nov 2009 12:00:00 +0100. The day of
+	 * the week and the seconds are optional, years may have two digits. Time
+	 * zones may be numeric, UT, GMT, Z or one of the North American zones,
+	 * other military zones and missing zones are taken as UTC.
+	 *
+	 * @param s
+	 *            characters containing the time
+	 * @param start
+	 *            index of the first character
+	 * @param end
+	 *            index after the last character
+	 * @return milliseconds since 1970-01-01T00:00:00Z or INVALID
+	 */
+	public static long parseRFC822(char[] s, int start, int end) {
+		int i = skipWhitespace(s, start, end);
+		int word = skipLetters(s, i, end);
+		if (word > i) {
+			/*
+			 * day of the week
+			 */
+			if (!is(s, word, end, ',')) {
+				return INVALID;
+			}
+			i = skipWhitespace(s, word + 1, end);
+		}
+		int day = digits(s, i, end, 2);
+		if (day >= 0) {
+			i += 2;
+		} else {
+			day = digits(s, i, end, 1);
+			i += 1;
+		}
+		if (day < 1 || day > 31) {
+			return INVALID;
+		}
+		i = skipWhitespace(s, i, end);
+		int month = indexOf(MONTHS, s, i, skipLetters(s, i, end));
+		if (month < 0) {
+			return INVALID;
+		}
+		i = skipWhitespace(s, i + 3, end);
+		int year = digits(s, i, end, 4);
+		if (year >= 0) {
+			i += 4;
+		} else {
+			year = digits(s, i, end, 2);
+			if (year < 0) {
+				return INVALID;
+			}
+			year += year < 50 ? 2000 : 1900;
+			i += 2;
+		}
+		i = skipWhitespace(s, i, end);
+		int hour = digits(s, i, end, 2);
+		int minute = is(s, i + 2, end, ':') ? digits(s, i + 3, end, 2) : -1;
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+			return INVALID;
+		}
+		i += 5;
+		int second = 0;
+		if (is(s, i, end, ':')) {
+			second = digits(s, i + 1, end, 2);
+			if (second < 0 || second > 60) {
+				return INVALID;
+			}
+			i += 3;
+		}
+
+		long time = daysSinceEpoch(year, month + 1, day) * DAY
+				+ (hour * 60 + minute) * MINUTE + second * 1000L;
+
+		i = skipWhitespace(s, i, end);
+		end = trimEnd(s, i, end);
+		if (i == end) {
+			return time;
+		}
+		if (s[i] == '+' || s[i] == '-') {
+			int offset = digits(s, i + 1, end, 4);
+			if (offset < 0 || i + 5 != end) {
+				return INVALID;
+			}
+			int minutes = offset / 100 * 60 + offset % 100;
+			return s[i] == '-' ? time + minutes * MINUTE : time - minutes
+					* MINUTE;
+		}
+		if (skipLetters(s, i, end) != end) {
+			return INVALID;
+		}
+		int zone = indexOf(ZONES, s, i, end);
+		if (zone >= 0) {
+			return time - ZONE_OFFSETS[zone] * 60 * MINUTE;
+		}
+		return time;
+	}
+
+	/**
+	 * @see #parseRFC822(char[], int, int)
+	 * @param s
+	 *            the time
+	 * @return milliseconds since 1970-01-01T00:00:00Z or INVALID
+	 */
+	public static long parseRFC822(String s) {
+		if (s == null) {
+			return INVALID;
+		}
+		return parseRFC822(toChars(s), 0, s.length());
+	}
+
+	/**
+	 * Formats a time as RFC 822 in UTC, like Wed, 11 Nov 2009 11:00:00 +0000.
+	 *
+	 * @param time
+	 *            milliseconds since 1970-01-01T00:00:00Z
+	 * @return the formatted time
+	 */
+	public static String formatRFC822(long time) {
+		long days = floorDiv(time, DAY);
+		int[] date = civil(days);
+		StringBuffer buf = new StringBuffer(31);
+		buf.append(DAYS[(int) (days - floorDiv(days, 7) * 7)]);
+		buf.append(", ");
+		appendPadded(buf, date[2], 2);
+		buf.append(' ');
+		buf.append(MONTHS[date[1] - 1]);
+		buf.append(' ');
+		appendPadded(buf, date[0], 4);
+		buf.append(' ');
+		appendTimeOfDay(buf, time - days * DAY);
+		buf.append(" +0000");
+		return buf.toString();
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date in the proleptic gregorian calendar.
+	 */
+	private static long daysSinceEpoch(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Year, month and day of a count of days since 1970-01-01.
+	 */
+	private static int[] civil(long days) {
+		days += 719468;
+		long era = (days >= 0 ? days : days - 146096) / 146097;
+		long dayOfEra = days - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+				- dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+		return new int[] { year, month, day };
+	}
+
+	private static void appendTimeOfDay(StringBuffer buf, long millisOfDay) {
+		int seconds = (int) (millisOfDay / 1000);
+		appendPadded(buf, seconds / 3600, 2);
+		buf.append(':');
+		appendPadded(buf, seconds / 60 % 60, 2);
+		buf.append(':');
+		appendPadded(buf, seconds % 60, 2);
+	}
+
+	private static void appendPadded(StringBuffer buf, int value, int width) {
+		if (value < 0) {
+			buf.append('-');
+			value = -value;
+		}
+		for (int limit = 10; width > 1; width--, limit *= 10) {
+			if (value < limit) {
+				buf.append('0');
+			}
+		}
+		buf.append(value);
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+
+	/**
+	 * Value of count decimal digits at start or -1 if there are none.
+	 */
+	private static int digits(char[] s, int start, int end, int count) {
+		if (start < 0 || start + count > end) {
+			return -1;
+		}
+		int ret = 0;
+		for (int i = start; i < start + count; i++) {
+			if (s[i] < '0' || s[i] > '9') {
+				return -1;
+			}
+			ret = ret * 10 + (s[i] - '0');
+		}
+		return ret;
+	}
+
+	private static boolean is(char[] s, int index, int end, char c) {
+		return index < end && s[index] == c;
+	}
+
+	/**
+	 * Index of the word from start to end in words, ignoring case, or -1.
+	 */
+	private static int indexOf(String[] words, char[] s, int start, int end) {
+		for (int w = 0; w < words.length; w++) {
+			String word = words[w];
+			if (word.length() != end - start) {
+				continue;
+			}
+			int i = 0;
+			while (i < word.length()
+					&& Character.toLowerCase(word.charAt(i)) == Character
+							.toLowerCase(s[start + i])) {
+				i++;
+			}
+			if (i == word.length()) {
+				return w;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipLetters(char[] s, int start, int end) {
+		while (start < end && Character.isLetter(s[start])) {
+			start++;
+		}
+		return start;
+	}
+
+	private static int skipWhitespace(char[] s, int start, int end) {
+		while (start < end && Character.isWhitespace(s[start])) {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(char[] s, int start, int end) {
+		while (end > start && Character.isWhitespace(s[end - 1])) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * The characters of s in the buffer of the calling Thread.
+	 */
+	private static char[] toChars(String s) {
+		char[] buf = buffers.get();
+		if (buf.length < s.length()) {
+			buf = new char[s.length()];
+			buffers.set(buf);
+		}
+		s.getChars(0, s.length(), buf, 0);
+		return buf;
+	}
+}